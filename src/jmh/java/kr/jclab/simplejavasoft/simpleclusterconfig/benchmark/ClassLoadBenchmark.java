@@ -0,0 +1,61 @@
+package kr.jclab.simplejavasoft.simpleclusterconfig.benchmark;
+
+import kr.jclab.simplejavasoft.simpleclusterconfig.modulemanager.ModuleManager;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@link ModuleManager#loadModule(String)} of a class in the last module of the tree, whose
+ * dependencies reach far back.
+ *
+ * cold: the first load after a scan, which builds the module's class loader and package map.
+ * cached: a repeated lookup of a class already loaded.
+ */
+@State(Scope.Benchmark)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+public class ClassLoadBenchmark {
+    @Param({"1000", "10000"})
+    public int moduleCount;
+
+    private File rootDir;
+    private String className;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException, ClassNotFoundException {
+        this.rootDir = ModuleTreeGenerator.fixture(this.moduleCount);
+        this.className = ModuleTreeGenerator.className(this.moduleCount - 1, 0);
+        ModuleManager moduleManager = ModuleManager.getInstance();
+        moduleManager.setCacheFile(null);
+        moduleManager.start(this.rootDir);
+        moduleManager.loadModule(this.className);
+    }
+
+    @State(Scope.Thread)
+    public static class FreshScan {
+        @Setup(Level.Invocation)
+        public void setUp(ClassLoadBenchmark benchmark) {
+            // drops the module loaders, keeps the JIT and file system caches warm
+            ModuleManager.getInstance().start(benchmark.rootDir);
+        }
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.SingleShotTime)
+    @Warmup(iterations = 20)
+    @Measurement(iterations = 50)
+    public Class<?> cold(FreshScan freshScan) throws ClassNotFoundException {
+        return ModuleManager.getInstance().loadModule(this.className);
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.AverageTime)
+    @Warmup(iterations = 3)
+    @Measurement(iterations = 5)
+    public Class<?> cached() throws ClassNotFoundException {
+        return ModuleManager.getInstance().loadModule(this.className);
+    }
+}
@@ -0,0 +1,128 @@
+package kr.jclab.simplejavasoft.simpleclusterconfig.benchmark;
+
+import kr.jclab.simplejavasoft.simpleclusterconfig.ConfigStore;
+import kr.jclab.simplejavasoft.simpleclusterconfig.Operation;
+import kr.jclab.simplejavasoft.simpleclusterconfig.SchemaManager;
+import kr.jclab.simplejavasoft.simpleclusterconfig.dialect.H2Dialect;
+import kr.jclab.simplejavasoft.simpleclusterconfig.dialect.SqlDialect;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * get/set/inc throughput against an in-memory H2 database, one connection per benchmark thread.
+ *
+ * get and set spread over {@link #KEY_COUNT} keys, inc contends on a single counter.
+ * Run {@link #main(String[])} for 1 to 64 threads, or pass -t to the JMH runner.
+ * Needs H2 2.x for the single statement increment, older versions fall back to a separate read.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class ConfigStoreBenchmark {
+    static final String URL = "jdbc:h2:mem:config_bench;DB_CLOSE_DELAY=-1";
+    static final String TABLE = "config";
+    static final int KEY_COUNT = 1000;
+    static final String COUNTER_KEY = "bench.counter";
+
+    @State(Scope.Benchmark)
+    public static class Database {
+        final SqlDialect dialect = new H2Dialect();
+        Connection connection;
+
+        @Setup(Level.Trial)
+        public void setUp() throws SQLException {
+            this.connection = DriverManager.getConnection(URL);
+            SchemaManager.initSchema(this.connection, this.dialect, TABLE);
+            ConfigStore store = new ConfigStore(this.connection, this.dialect, TABLE);
+            for(int i=0; i<KEY_COUNT; i++) {
+                store.execute(new Operation(Operation.Type.SET, key(i), "value-" + i));
+            }
+            store.execute(new Operation(Operation.Type.SET, COUNTER_KEY, "0"));
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() throws SQLException {
+            try(Connection connection = this.connection) {
+                connection.createStatement().execute("DROP TABLE " + this.dialect.quote(TABLE));
+            }
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class Session {
+        /** single autocommit statements instead of a transaction per write */
+        @Param({"false", "true"})
+        public boolean optimistic;
+
+        ConfigStore store;
+
+        @Setup(Level.Trial)
+        public void setUp(Database database) throws SQLException {
+            this.store = new ConfigStore(DriverManager.getConnection(URL), database.dialect, TABLE, true);
+            this.store.setOptimistic(this.optimistic);
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() throws SQLException {
+            this.store.close();
+            this.store.getConnection().close();
+        }
+    }
+
+    static String key(int index) {
+        return "bench.key." + index;
+    }
+
+    /**
+     * Runs the operation until it commits. Without optimistic mode a conflicting write fails with a
+     * serialization error (H2 2.x, PostgreSQL) and is left to the caller to retry, as a script would.
+     */
+    static String execute(ConfigStore store, Operation operation) throws SQLException {
+        while(true) {
+            try {
+                return store.execute(operation);
+            } catch (SQLException e) {
+                if(!ConfigStore.isRetryable(e))
+                    throw e;
+            }
+        }
+    }
+
+    @Benchmark
+    public String get(Session session) throws SQLException {
+        String key = key(ThreadLocalRandom.current().nextInt(KEY_COUNT));
+        return execute(session.store, new Operation(Operation.Type.GET, key, null));
+    }
+
+    @Benchmark
+    public String set(Session session) throws SQLException {
+        int index = ThreadLocalRandom.current().nextInt(KEY_COUNT);
+        return execute(session.store, new Operation(Operation.Type.SET, key(index), "value-" + index));
+    }
+
+    @Benchmark
+    public String inc(Session session) throws SQLException {
+        return execute(session.store, new Operation(Operation.Type.INCREMENT, COUNTER_KEY, "1"));
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        for(int threads = 1; threads <= 64; threads *= 4) {
+            Options options = new OptionsBuilder()
+                    .include(ConfigStoreBenchmark.class.getName())
+                    .threads(threads)
+                    .build();
+            new Runner(options).run();
+        }
+    }
+}
@@ -0,0 +1,49 @@
+package kr.jclab.simplejavasoft.simpleclusterconfig.benchmark;
+
+import kr.jclab.simplejavasoft.simpleclusterconfig.modulemanager.ModuleItem;
+import org.openjdk.jmh.annotations.*;
+import org.xml.sax.SAXException;
+
+import javax.xml.parsers.DocumentBuilder;
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamException;
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Parsing one module.xml, with the StAX reader the module scan uses and with DOM.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class ModuleItemBenchmark {
+    private File moduleFile;
+    private XMLInputFactory inputFactory;
+    private DocumentBuilder documentBuilder;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException, ParserConfigurationException {
+        File rootDir = ModuleTreeGenerator.fixture(100);
+        this.moduleFile = new ModuleTreeGenerator(rootDir, 100, 4).getModuleFile(99);
+        this.inputFactory = XMLInputFactory.newInstance();
+        this.inputFactory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+        this.inputFactory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+        this.documentBuilder = DocumentBuilderFactory.newInstance().newDocumentBuilder();
+    }
+
+    @Benchmark
+    public ModuleItem parseStax() throws IOException, XMLStreamException {
+        return new ModuleItem(this.inputFactory, this.moduleFile);
+    }
+
+    @Benchmark
+    public ModuleItem parseDom() throws IOException, SAXException {
+        return new ModuleItem(this.documentBuilder, this.moduleFile);
+    }
+}
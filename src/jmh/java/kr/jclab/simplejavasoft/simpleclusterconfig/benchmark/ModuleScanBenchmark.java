@@ -0,0 +1,58 @@
+package kr.jclab.simplejavasoft.simpleclusterconfig.benchmark;
+
+import kr.jclab.simplejavasoft.simpleclusterconfig.modulemanager.ModuleManager;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Module tree scan as done by {@link ModuleManager#start(File)}, without and with the module index cache.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class ModuleScanBenchmark {
+    @Param({"100", "1000", "10000"})
+    public int moduleCount;
+
+    @Param({"1", "4"})
+    public int scanThreads;
+
+    private File rootDir;
+    private File cacheFile;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        this.rootDir = ModuleTreeGenerator.fixture(this.moduleCount);
+        this.cacheFile = File.createTempFile("module-cache", ".bin");
+        this.cacheFile.delete();
+        ModuleManager moduleManager = ModuleManager.getInstance();
+        moduleManager.setScanThreads(this.scanThreads);
+        moduleManager.setCacheFile(this.cacheFile);
+        moduleManager.start(this.rootDir);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        this.cacheFile.delete();
+    }
+
+    @Benchmark
+    public void scan() {
+        ModuleManager moduleManager = ModuleManager.getInstance();
+        moduleManager.setCacheFile(null);
+        moduleManager.start(this.rootDir);
+    }
+
+    @Benchmark
+    public void scanCached() {
+        ModuleManager moduleManager = ModuleManager.getInstance();
+        moduleManager.setCacheFile(this.cacheFile);
+        moduleManager.start(this.rootDir);
+    }
+}
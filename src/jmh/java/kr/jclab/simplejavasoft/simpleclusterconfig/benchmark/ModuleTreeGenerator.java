@@ -0,0 +1,163 @@
+package kr.jclab.simplejavasoft.simpleclusterconfig.benchmark;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.jar.JarEntry;
+import java.util.jar.JarOutputStream;
+
+/**
+ * Writes a synthetic jboss module tree, the same for the same arguments.
+ *
+ * Module i is named org.m&lt;i/100&gt;.p&lt;i&gt; and lives in org/m&lt;i/100&gt;/p&lt;i&gt;/main, with one jar
+ * (and its .index) holding one empty class per package: org.m&lt;g&gt;.p&lt;i&gt;.k&lt;j&gt;.C&lt;j&gt;.
+ * Every module depends on up to three modules with a lower number and on javax.api, which is
+ * not in the tree, like a real JDK module.
+ */
+public class ModuleTreeGenerator {
+    private static final String MARKER = ".complete";
+
+    private final File rootDir;
+    private final int moduleCount;
+    private final int packagesPerModule;
+
+    public ModuleTreeGenerator(File rootDir, int moduleCount, int packagesPerModule) {
+        this.rootDir = rootDir;
+        this.moduleCount = moduleCount;
+        this.packagesPerModule = packagesPerModule;
+    }
+
+    /**
+     * @return the directory for moduleCount modules below jmh.fixtures (default build/jmh-fixtures),
+     *         generated on first use
+     */
+    public static File fixture(int moduleCount) throws IOException {
+        File baseDir = new File(System.getProperty("jmh.fixtures", "build/jmh-fixtures"));
+        File rootDir = new File(baseDir, "modules-" + moduleCount);
+        new ModuleTreeGenerator(rootDir, moduleCount, 4).generateIfMissing();
+        return rootDir;
+    }
+
+    public static String moduleName(int index) {
+        return "org.m" + (index / 100) + ".p" + index;
+    }
+
+    /**
+     * @return name of the class in the given package of the given module
+     */
+    public static String className(int index, int packageIndex) {
+        return moduleName(index) + ".k" + packageIndex + ".C" + packageIndex;
+    }
+
+    public File getModuleFile(int index) {
+        return new File(getModuleDir(index), "module.xml");
+    }
+
+    private File getModuleDir(int index) {
+        return new File(this.rootDir, moduleName(index).replace('.', File.separatorChar) + File.separator + "main");
+    }
+
+    public void generateIfMissing() throws IOException {
+        if(!new File(this.rootDir, MARKER).isFile()) {
+            generate();
+        }
+    }
+
+    public void generate() throws IOException {
+        Random random = new Random(this.moduleCount);
+        for(int i=0; i<this.moduleCount; i++) {
+            File moduleDir = getModuleDir(i);
+            if(!moduleDir.isDirectory() && !moduleDir.mkdirs()) {
+                throw new IOException("Cannot create " + moduleDir);
+            }
+            String jarName = "p" + i + ".jar";
+            List<String> dependencies = new ArrayList<>();
+            for(int d=0; d<3 && i > 0; d++) {
+                String dependency = moduleName(random.nextInt(i));
+                if(!dependencies.contains(dependency))
+                    dependencies.add(dependency);
+            }
+            dependencies.add("javax.api");
+            writeModuleXml(new File(moduleDir, "module.xml"), moduleName(i), jarName, dependencies);
+            writeJar(new File(moduleDir, jarName), i);
+        }
+        new FileOutputStream(new File(this.rootDir, MARKER)).close();
+    }
+
+    private static void writeModuleXml(File file, String name, String jarName, List<String> dependencies) throws IOException {
+        StringBuilder xml = new StringBuilder();
+        xml.append("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n");
+        xml.append("<module xmlns=\"urn:jboss:module:1.3\" name=\"").append(name).append("\">\n");
+        xml.append("    <resources>\n");
+        xml.append("        <resource-root path=\"").append(jarName).append("\"/>\n");
+        xml.append("    </resources>\n");
+        xml.append("    <dependencies>\n");
+        for(String dependency : dependencies) {
+            xml.append("        <module name=\"").append(dependency).append("\"/>\n");
+        }
+        xml.append("    </dependencies>\n");
+        xml.append("</module>\n");
+        try(OutputStream outputStream = new FileOutputStream(file)) {
+            outputStream.write(xml.toString().getBytes(StandardCharsets.UTF_8));
+        }
+    }
+
+    private void writeJar(File jarFile, int index) throws IOException {
+        List<String> packages = new ArrayList<>();
+        try(JarOutputStream jarOutputStream = new JarOutputStream(new FileOutputStream(jarFile))) {
+            for(int p=0; p<this.packagesPerModule; p++) {
+                String internalName = className(index, p).replace('.', '/');
+                packages.add(internalName.substring(0, internalName.lastIndexOf('/')));
+                jarOutputStream.putNextEntry(new JarEntry(internalName + ".class"));
+                jarOutputStream.write(emptyClass(internalName));
+                jarOutputStream.closeEntry();
+            }
+        }
+        try(Writer writer = new OutputStreamWriter(new FileOutputStream(jarFile.getPath() + ".index"), StandardCharsets.UTF_8)) {
+            for(String path : packages) {
+                writer.write(path);
+                writer.write('\n');
+            }
+        }
+    }
+
+    /**
+     * Class file (Java 7) of a public class without members.
+     */
+    static byte[] emptyClass(String internalName) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(0xCAFEBABE);
+        out.writeShort(0);
+        out.writeShort(51);
+        out.writeShort(5);
+        out.writeByte(7);   // #1 this class
+        out.writeShort(2);
+        out.writeByte(1);   // #2
+        out.writeUTF(internalName);
+        out.writeByte(7);   // #3 super class
+        out.writeShort(4);
+        out.writeByte(1);   // #4
+        out.writeUTF("java/lang/Object");
+        out.writeShort(0x0021);
+        out.writeShort(1);
+        out.writeShort(3);
+        out.writeShort(0);  // interfaces
+        out.writeShort(0);  // fields
+        out.writeShort(0);  // methods
+        out.writeShort(0);  // attributes
+        out.flush();
+        return bytes.toByteArray();
+    }
+
+    public static void main(String[] args) throws IOException {
+        if(args.length < 2) {
+            System.err.println("Usage: ModuleTreeGenerator <directory> <module count> [packages per module]");
+            System.exit(1);
+        }
+        int packages = (args.length > 2) ? Integer.parseInt(args[2]) : 4;
+        long startTime = System.currentTimeMillis();
+        new ModuleTreeGenerator(new File(args[0]), Integer.parseInt(args[1]), packages).generate();
+        System.out.println("Generated " + args[1] + " modules in " + args[0] + " (" + (System.currentTimeMillis() - startTime) + " ms)");
+    }
+}
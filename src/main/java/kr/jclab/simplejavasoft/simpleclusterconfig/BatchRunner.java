@@ -0,0 +1,411 @@
+package kr.jclab.simplejavasoft.simpleclusterconfig;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.sql.BatchUpdateException;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.*;
+
+/**
+ * Runs many operations over one connection.
+ *
+ * Consecutive writes of the same type are sent as one JDBC batch, and every key is read back with
+ * IN (...) queries after the writes. So a get or set reports the key's value after the whole batch.
+ * An increment or decrement reports the value right after itself: the final value less the deltas
+ * that came after it, or the value counted on from an earlier set of the key (or from the value read
+ * before the batch, for keys that are set again after being incremented).
+ */
+public class BatchRunner {
+    public static final int STATUS_OK = 0;
+    public static final int STATUS_NOT_FOUND = 1;
+    /** A compare-and-set found another version. */
+    public static final int STATUS_CONFLICT = 2;
+    public static final int STATUS_ERROR = 10;
+
+    public enum CommitPolicy {
+        /** One transaction, any failure rolls back every operation. */
+        ALL,
+        /**
+         * A failure only affects the failing operation. Consecutive writes of one type are committed together
+         * as one JDBC batch, other operations commit on their own. A failed batch is rolled back and rerun one
+         * operation at a time, each with its own commit.
+         */
+        EACH
+    }
+
+    private final ConfigStore store;
+    private final CommitPolicy commitPolicy;
+
+    public BatchRunner(ConfigStore store, CommitPolicy commitPolicy) {
+        this.store = store;
+        this.commitPolicy = commitPolicy;
+    }
+
+    /**
+     * Reads operations, one per line. A line that can not be parsed fails the whole batch
+     * with {@link CommitPolicy#ALL}, and only itself with {@link CommitPolicy#EACH}.
+     */
+    public List<Result> run(BufferedReader reader) throws IOException, SQLException {
+        List<Operation> operations = new ArrayList<>();
+        List<String> parseErrors = new ArrayList<>();
+        boolean hasParseError = false;
+        String line;
+        while((line = reader.readLine()) != null) {
+            try {
+                Operation operation = Operation.parse(line);
+                if(operation == null)
+                    continue;
+                operations.add(operation);
+                parseErrors.add(null);
+            } catch (IllegalArgumentException e) {
+                operations.add(null);
+                parseErrors.add(e.getMessage());
+                hasParseError = true;
+            }
+        }
+
+        if(hasParseError && this.commitPolicy == CommitPolicy.ALL) {
+            for(String parseError : parseErrors) {
+                if(parseError != null)
+                    System.err.println(parseError);
+            }
+            return failAll(operations);
+        }
+        return run(operations);
+    }
+
+    /**
+     * @param operations null entries are reported as errors without being run
+     */
+    public List<Result> run(List<Operation> operations) throws SQLException {
+        boolean[] failed = new boolean[operations.size()];
+        int[] directStatuses = new int[operations.size()];
+        String[] directValues = new String[operations.size()];
+        this.store.getConnection().setAutoCommit(false);
+
+        Map<String, String> before;
+        try {
+            before = readKeysSetAfterIncrement(operations);
+        } catch (SQLException e) {
+            this.store.getConnection().rollback();
+            e.printStackTrace();
+            return failAll(operations);
+        }
+
+        try {
+            int start = 0;
+            while(start < operations.size()) {
+                Operation first = operations.get(start);
+                if(first == null) {
+                    failed[start] = true;
+                    start++;
+                    continue;
+                }
+                if(!first.getType().isBatchable()) {
+                    executeDirect(first, start, directValues, directStatuses, failed);
+                    start++;
+                    continue;
+                }
+                if(!first.getType().isWrite()) {
+                    // read back with the others after the writes
+                    start++;
+                    continue;
+                }
+                int end = start + 1;
+                while(end < operations.size() && operations.get(end) != null && operations.get(end).getType() == first.getType()) {
+                    end++;
+                }
+                if(this.commitPolicy == CommitPolicy.EACH) {
+                    try {
+                        executeGroup(operations, start, end, failed);
+                    } catch (SQLException e) {
+                        this.store.getConnection().rollback();
+                        System.err.println(e.getMessage());
+                        Arrays.fill(failed, start, end, true);
+                    }
+                }else{
+                    executeGroup(operations, start, end, failed);
+                }
+                start = end;
+            }
+            this.store.getConnection().commit();
+        } catch (SQLException e) {
+            this.store.getConnection().rollback();
+            e.printStackTrace();
+            return failAll(operations);
+        }
+
+        List<String> keys = new ArrayList<>();
+        for(Operation operation : operations) {
+            if(operation != null)
+                keys.add(operation.getKey());
+        }
+        Map<String, String> values = this.store.getAll(keys);
+        this.store.getConnection().commit();
+        String[] incrementValues = incrementValues(operations, failed, directStatuses, directValues, before, values);
+
+        List<Result> results = new ArrayList<>(operations.size());
+        for(int i=0; i<operations.size(); i++) {
+            Operation operation = operations.get(i);
+            if(operation == null || failed[i]) {
+                results.add(new Result(STATUS_ERROR, (operation != null) ? operation.getKey() : null, null));
+            }else if(!operation.getType().isBatchable()) {
+                results.add(new Result(directStatuses[i], operation.getKey(), directValues[i]));
+            }else if(incrementValues[i] != null) {
+                results.add(new Result(STATUS_OK, operation.getKey(), incrementValues[i]));
+            }else{
+                String value = values.get(operation.getKey());
+                results.add(new Result((value != null) ? STATUS_OK : STATUS_NOT_FOUND, operation.getKey(), value));
+            }
+        }
+        return results;
+    }
+
+    /**
+     * Reads the keys that are incremented or decremented before anything else writes them, and then
+     * are overwritten later in the batch. Their final value says nothing about those increments.
+     */
+    private Map<String, String> readKeysSetAfterIncrement(List<Operation> operations) throws SQLException {
+        Set<String> incremented = new HashSet<>();
+        Set<String> anchored = new HashSet<>();
+        Set<String> keys = new LinkedHashSet<>();
+        for(Operation operation : operations) {
+            if(operation == null)
+                continue;
+            if(isIncrement(operation)) {
+                if(!anchored.contains(operation.getKey()))
+                    incremented.add(operation.getKey());
+            }else if(operation.getType().isWrite() && operation.getType() != Operation.Type.STRIPE) {
+                if(incremented.contains(operation.getKey()))
+                    keys.add(operation.getKey());
+                anchored.add(operation.getKey());
+            }
+        }
+        if(keys.isEmpty())
+            return Collections.emptyMap();
+        return this.store.getAll(new ArrayList<>(keys));
+    }
+
+    /**
+     * Works out the value each successful increment or decrement left behind. Increments after a key's
+     * last other write are counted back from its final value, earlier ones are counted on from the write
+     * (or the value read before the batch) ahead of them.
+     *
+     * @return null entries for operations that are not increments, or whose value is not a number
+     */
+    private static String[] incrementValues(List<Operation> operations, boolean[] failed, int[] directStatuses, String[] directValues,
+                                            Map<String, String> before, Map<String, String> after) {
+        Map<String, List<Integer>> indexesByKey = new LinkedHashMap<>();
+        for(int i=0; i<operations.size(); i++) {
+            Operation operation = operations.get(i);
+            if(operation == null || failed[i] || !operation.getType().isWrite() || operation.getType() == Operation.Type.STRIPE)
+                continue;
+            if(!operation.getType().isBatchable() && directStatuses[i] != STATUS_OK)
+                continue;
+            List<Integer> indexes = indexesByKey.get(operation.getKey());
+            if(indexes == null) {
+                indexes = new ArrayList<>();
+                indexesByKey.put(operation.getKey(), indexes);
+            }
+            indexes.add(i);
+        }
+
+        String[] values = new String[operations.size()];
+        for(Map.Entry<String, List<Integer>> entry : indexesByKey.entrySet()) {
+            List<Integer> indexes = entry.getValue();
+            Long current = parseValue(after.get(entry.getKey()));
+            int last = indexes.size() - 1;
+            for(; last >= 0 && isIncrement(operations.get(indexes.get(last))); last--) {
+                Operation operation = operations.get(indexes.get(last));
+                if(current != null) {
+                    values[indexes.get(last)] = current.toString();
+                    current = current - delta(operation);
+                }
+            }
+
+            String initial = before.get(entry.getKey());
+            current = (initial != null) ? parseValue(initial) : Long.valueOf(0);
+            for(int k=0; k<last; k++) {
+                int index = indexes.get(k);
+                Operation operation = operations.get(index);
+                if(isIncrement(operation)) {
+                    if(current != null) {
+                        current = current + delta(operation);
+                        values[index] = current.toString();
+                    }
+                }else if(operation.getType() == Operation.Type.RESERVE) {
+                    current = parseValue(directValues[index].substring(directValues[index].indexOf(' ') + 1));
+                }else if(operation.getType() == Operation.Type.NEXT_ID) {
+                    current = parseValue(directValues[index]);
+                }else{
+                    current = parseValue(operation.getValue());
+                }
+            }
+        }
+        return values;
+    }
+
+    private static boolean isIncrement(Operation operation) {
+        return operation.getType() == Operation.Type.INCREMENT || operation.getType() == Operation.Type.DECREMENT;
+    }
+
+    private static long delta(Operation operation) {
+        long amount = Long.parseLong(operation.getValue());
+        return (operation.getType() == Operation.Type.DECREMENT) ? -amount : amount;
+    }
+
+    private static Long parseValue(String value) {
+        if(value == null)
+            return null;
+        try {
+            return Long.valueOf(value.trim());
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Runs an operation whose result is not the key's final value (e.g. a reserved range).
+     * A compare-and-set conflict reports the current version; with {@link CommitPolicy#ALL} it fails the batch.
+     */
+    private void executeDirect(Operation operation, int index, String[] directValues, int[] directStatuses, boolean[] failed) throws SQLException {
+        try {
+            directStatuses[index] = STATUS_OK;
+            switch (operation.getType()) {
+                case RESERVE: {
+                    long[] range = this.store.reserve(operation.getKey(), Long.parseLong(operation.getValue()));
+                    directValues[index] = range[0] + " " + range[1];
+                    break;
+                }
+                case STRIPE:
+                    this.store.setStripeCount(operation.getKey(), Integer.parseInt(operation.getValue()));
+                    directValues[index] = operation.getValue();
+                    break;
+                case GETV:
+                    directValues[index] = this.store.getVersioned(operation.getKey());
+                    if(directValues[index] == null)
+                        directStatuses[index] = STATUS_NOT_FOUND;
+                    break;
+                case CAS:
+                    directValues[index] = Long.toString(this.store.compareAndSet(operation.getKey(), operation.getExpectedVersion(), operation.getValue()));
+                    break;
+                default:
+                    directValues[index] = Long.toString(this.store.reserve(operation.getKey(), 1)[0]);
+            }
+            if(this.commitPolicy == CommitPolicy.EACH)
+                this.store.getConnection().commit();
+        } catch (VersionConflictException e) {
+            if(this.commitPolicy == CommitPolicy.ALL)
+                throw e;
+            this.store.getConnection().rollback();
+            directStatuses[index] = STATUS_CONFLICT;
+            directValues[index] = Long.toString(e.getCurrentVersion());
+        } catch (SQLException | IllegalArgumentException e) {
+            if(this.commitPolicy == CommitPolicy.ALL)
+                throw (e instanceof SQLException) ? (SQLException) e : new SQLException(e.getMessage(), e);
+            this.store.getConnection().rollback();
+            System.err.println(e.getMessage());
+            failed[index] = true;
+        }
+    }
+
+    private void executeGroup(List<Operation> operations, int start, int end, boolean[] failed) throws SQLException {
+        if(operations.get(start).getType() != Operation.Type.SET) {
+            List<String> keys = new ArrayList<>(end - start);
+            for(int i=start; i<end; i++) {
+                keys.add(operations.get(i).getKey());
+            }
+            this.store.loadStripeCounts(keys);
+        }
+        try(PreparedStatement preparedStatement = this.store.prepareWrite(operations.get(start).getType())) {
+            for(int i=start; i<end; i++) {
+                this.store.bindWrite(preparedStatement, operations.get(i));
+                preparedStatement.addBatch();
+            }
+            try {
+                int[] updateCounts = preparedStatement.executeBatch();
+                if(operations.get(start).getType() == Operation.Type.SET) {
+                    List<String[]> rows = new ArrayList<>(end - start);
+                    for(int i=start; i<end; i++) {
+                        rows.add(new String[] { operations.get(i).getKey(), operations.get(i).getValue() });
+                    }
+                    this.store.completeSets(rows, updateCounts);
+                }
+                if(this.commitPolicy == CommitPolicy.EACH)
+                    this.store.getConnection().commit();
+            } catch (BatchUpdateException e) {
+                if(this.commitPolicy == CommitPolicy.ALL)
+                    throw e;
+                // Drivers differ on what they ran after a failure, so redo the group one by one
+                this.store.getConnection().rollback();
+                for(int i=start; i<end; i++) {
+                    try {
+                        this.store.write(operations.get(i));
+                        this.store.getConnection().commit();
+                    } catch (SQLException e2) {
+                        this.store.getConnection().rollback();
+                        System.err.println(e2.getMessage());
+                        failed[i] = true;
+                    }
+                }
+            }
+        }
+    }
+
+    private static List<Result> failAll(List<Operation> operations) {
+        List<Result> results = new ArrayList<>(operations.size());
+        for(Operation operation : operations) {
+            results.add(new Result(STATUS_ERROR, (operation != null) ? operation.getKey() : null, null));
+        }
+        return results;
+    }
+
+    /**
+     * Prints one "status TAB key TAB value" line per result.
+     *
+     * @return exit code: 0 if every operation succeeded, 10 if any failed, otherwise the first other status
+     */
+    public static int print(List<Result> results, PrintStream out) {
+        int exitCode = STATUS_OK;
+        for(Result result : results) {
+            out.print(result.getStatus());
+            out.print('\t');
+            out.print((result.getKey() != null) ? result.getKey() : "");
+            out.print('\t');
+            out.println((result.getValue() != null) ? result.getValue() : "");
+            if(result.getStatus() == STATUS_ERROR) {
+                exitCode = STATUS_ERROR;
+            }else if(result.getStatus() != STATUS_OK && exitCode == STATUS_OK) {
+                exitCode = result.getStatus();
+            }
+        }
+        out.flush();
+        return exitCode;
+    }
+
+    public static class Result {
+        private final int status;
+        private final String key;
+        private final String value;
+
+        public Result(int status, String key, String value) {
+            this.status = status;
+            this.key = key;
+            this.value = value;
+        }
+
+        public int getStatus() {
+            return status;
+        }
+
+        public String getKey() {
+            return key;
+        }
+
+        public String getValue() {
+            return value;
+        }
+    }
+}
@@ -0,0 +1,637 @@
+package kr.jclab.simplejavasoft.simpleclusterconfig;
+
+import kr.jclab.simplejavasoft.simpleclusterconfig.dialect.SqlDialect;
+import kr.jclab.simplejavasoft.simpleclusterconfig.metrics.Metrics;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.*;
+
+/**
+ * Upserts the rows of an export (JSON lines or CSV) in chunks.
+ *
+ * Rows are written as JDBC batches of batchSize upserts, or as multi-row INSERT statements where the
+ * dialect has them, and committed every commitRows rows. Only the rows since the last commit are held,
+ * so a deadlock or serialization failure replays just that chunk. With a progress file the number of
+ * committed input rows is saved after every commit, and a later run over the same input skips them.
+ * The file also records the table, the format, the input name and a SHA-256 digest of the committed rows,
+ * and a run whose input does not match them refuses to resume.
+ */
+public class BulkImporter {
+    private final Connection connection;
+    private final SqlDialect dialect;
+    private final String table;
+    private final ConfigStore store;
+    private int batchSize = 500;
+    private int commitRows = 5000;
+    private boolean multiRow = false;
+    private boolean raw = false;
+    private int maxRetries = 5;
+    private File progressFile = null;
+    private String inputName = "-";
+
+    public BulkImporter(Connection connection, SqlDialect dialect, String table) {
+        this.connection = connection;
+        this.dialect = dialect;
+        this.table = table;
+        this.store = new ConfigStore(connection, dialect, table);
+    }
+
+    /**
+     * @param batchSize upserts per JDBC batch or multi-row statement
+     */
+    public void setBatchSize(int batchSize) {
+        this.batchSize = Math.max(1, batchSize);
+    }
+
+    public void setCommitRows(int commitRows) {
+        this.commitRows = Math.max(1, commitRows);
+    }
+
+    /**
+     * Uses one INSERT with batchSize rows where the dialect supports it, plain batches otherwise.
+     */
+    public void setMultiRow(boolean multiRow) {
+        this.multiRow = multiRow;
+    }
+
+    /**
+     * Writes every row as it is, for an export of stored rows ({@link ConfigStore#listRows(String, ConfigStore.RowCallback)}).
+     * Otherwise a row of a striped counter sets its total, replacing the shards.
+     */
+    public void setRaw(boolean raw) {
+        this.raw = raw;
+    }
+
+    public void setMaxRetries(int maxRetries) {
+        this.maxRetries = maxRetries;
+    }
+
+    /**
+     * @param progressFile where the committed row count is kept between runs, deleted when the import completes
+     */
+    public void setProgressFile(File progressFile) {
+        this.progressFile = progressFile;
+    }
+
+    /**
+     * @param inputName the input file, recorded in the progress file ("-" for stdin)
+     */
+    public void setInputName(String inputName) {
+        this.inputName = inputName;
+    }
+
+    public static class Result {
+        private final long skippedRows;
+        private final long importedRows;
+        private final long elapsedMillis;
+
+        Result(long skippedRows, long importedRows, long elapsedMillis) {
+            this.skippedRows = skippedRows;
+            this.importedRows = importedRows;
+            this.elapsedMillis = elapsedMillis;
+        }
+
+        /**
+         * @return rows committed by an earlier run
+         */
+        public long getSkippedRows() {
+            return skippedRows;
+        }
+
+        public long getImportedRows() {
+            return importedRows;
+        }
+
+        public long getElapsedMillis() {
+            return elapsedMillis;
+        }
+    }
+
+    /**
+     * Thrown after rows were committed, which stay committed.
+     */
+    public static class ImportException extends SQLException {
+        private static final long serialVersionUID = 1L;
+
+        private final long committedRows;
+
+        ImportException(long committedRows, SQLException cause) {
+            super(cause.getMessage(), cause.getSQLState(), cause.getErrorCode(), cause);
+            this.committedRows = committedRows;
+        }
+
+        /**
+         * @return input rows committed so far, including those of earlier runs
+         */
+        public long getCommittedRows() {
+            return committedRows;
+        }
+    }
+
+    /**
+     * The progress file belongs to another import, running again would not help.
+     */
+    public static class ResumeMismatchException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        ResumeMismatchException(String message) {
+            super(message);
+        }
+    }
+
+    public Result run(Reader input, OutputFormat format) throws IOException, SQLException {
+        RowReader reader = RowReader.forFormat(input, format);
+        long startTime = System.currentTimeMillis();
+        Progress progress = readProgress(format);
+        long resumeFrom = (progress != null) ? progress.rows : 0;
+        long position = 0;
+        long committed = resumeFrom;
+        MessageDigest digest = newDigest();
+
+        boolean useMultiRow = this.multiRow && this.dialect.multiRowUpsertSql(this.table, 1) != null;
+        this.connection.setAutoCommit(false);
+        this.connection.setTransactionIsolation(Connection.TRANSACTION_READ_COMMITTED);
+        List<String[]> chunk = new ArrayList<>();
+        String[] row;
+        while((row = reader.next()) != null) {
+            updateDigest(digest, row);
+            if(position++ < resumeFrom) {
+                if(position == resumeFrom)
+                    checkDigest(progress, digest);
+                continue;
+            }
+            chunk.add(row);
+            if(chunk.size() >= this.commitRows) {
+                committed = commitChunk(chunk, committed, useMultiRow, digest, format);
+                chunk.clear();
+            }
+        }
+        if(position < resumeFrom) {
+            throw new ResumeMismatchException("The input has " + position + " rows, fewer than the " + resumeFrom + " committed rows in " + this.progressFile);
+        }
+        if(!chunk.isEmpty()) {
+            committed = commitChunk(chunk, committed, useMultiRow, digest, format);
+        }
+        if(this.progressFile != null) {
+            this.progressFile.delete();
+        }
+        return new Result(Math.min(resumeFrom, position), committed - resumeFrom, System.currentTimeMillis() - startTime);
+    }
+
+    /**
+     * @return committed rows after this chunk
+     */
+    private long commitChunk(List<String[]> chunk, long committed, boolean useMultiRow, MessageDigest digest, OutputFormat format) throws IOException, SQLException {
+        long started = Metrics.start();
+        for(int attempt = 0; ; attempt++) {
+            try {
+                if(useMultiRow) {
+                    writeMultiRow(chunk);
+                }else{
+                    writeBatches(chunk);
+                }
+                this.connection.commit();
+                break;
+            } catch (SQLException e) {
+                rollbackQuietly();
+                if(attempt >= this.maxRetries || !ConfigStore.isRetryable(e)) {
+                    throw new ImportException(committed, e);
+                }
+            }
+            try {
+                ConfigStore.backOff(attempt, "a chunk");
+            } catch (SQLException e) {
+                throw new ImportException(committed, e);
+            }
+        }
+        committed += chunk.size();
+        writeProgress(committed, digest, format);
+        Metrics.add("rows_imported", chunk.size());
+        Metrics.stop("import.chunk", started);
+        return committed;
+    }
+
+    private void writeBatches(List<String[]> chunk) throws SQLException {
+        try(PreparedStatement preparedStatement = this.store.prepareWrite(Operation.Type.SET)) {
+            List<String[]> pending = new ArrayList<>(this.batchSize);
+            for(String[] row : chunk) {
+                if(this.raw) {
+                    this.store.bindRawSet(preparedStatement, row[0], row[1]);
+                }else{
+                    this.store.bindWrite(preparedStatement, new Operation(Operation.Type.SET, row[0], row[1]));
+                }
+                preparedStatement.addBatch();
+                pending.add(row);
+                if(pending.size() >= this.batchSize) {
+                    executeBatch(preparedStatement, pending);
+                    pending.clear();
+                }
+            }
+            if(!pending.isEmpty()) {
+                executeBatch(preparedStatement, pending);
+            }
+        }
+    }
+
+    private void executeBatch(PreparedStatement preparedStatement, List<String[]> rows) throws SQLException {
+        int[] updateCounts = preparedStatement.executeBatch();
+        if(!this.raw)
+            this.store.completeSets(rows, updateCounts);
+    }
+
+    private void writeMultiRow(List<String[]> chunk) throws SQLException {
+        PreparedStatement fullStatement = null;
+        try {
+            // One statement can not update a key twice (PostgreSQL), so the last row of a key wins
+            Map<String, String> rows = new LinkedHashMap<>();
+            for(String[] row : chunk) {
+                rows.remove(row[0]);
+                rows.put(row[0], row[1]);
+                if(rows.size() >= this.batchSize) {
+                    if(fullStatement == null)
+                        fullStatement = this.connection.prepareStatement(this.dialect.multiRowUpsertSql(this.table, this.batchSize));
+                    executeMultiRow(fullStatement, rows);
+                    rows.clear();
+                }
+            }
+            if(!rows.isEmpty()) {
+                try(PreparedStatement preparedStatement = this.connection.prepareStatement(this.dialect.multiRowUpsertSql(this.table, rows.size()))) {
+                    executeMultiRow(preparedStatement, rows);
+                }
+            }
+        } finally {
+            if(fullStatement != null)
+                fullStatement.close();
+        }
+    }
+
+    /**
+     * The multi-row upsert also writes the base row of striped counters, {@link ConfigStore#completeSets(List, int[])}
+     * then clears their shards so the imported value is the total.
+     */
+    private void executeMultiRow(PreparedStatement preparedStatement, Map<String, String> rows) throws SQLException {
+        int index = 1;
+        List<String[]> written = new ArrayList<>(rows.size());
+        for(Map.Entry<String, String> row : rows.entrySet()) {
+            preparedStatement.setString(index++, row.getKey());
+            preparedStatement.setString(index++, row.getValue());
+            written.add(new String[] { row.getKey(), row.getValue() });
+        }
+        preparedStatement.executeUpdate();
+        if(!this.raw)
+            this.store.completeSets(written, null);
+    }
+
+    private void rollbackQuietly() {
+        try {
+            this.connection.rollback();
+        } catch (SQLException e) {
+            // the connection is gone, the caller sees the original error
+        }
+    }
+
+    private static class Progress {
+        long rows;
+        String digest;
+    }
+
+    /**
+     * @return null without a progress file
+     * @throws IOException if the progress file was written for another table, format or input
+     */
+    private Progress readProgress(OutputFormat format) throws IOException {
+        if(this.progressFile == null || !this.progressFile.isFile()) {
+            return null;
+        }
+        Properties properties = new Properties();
+        try(InputStream in = new FileInputStream(this.progressFile)) {
+            properties.load(in);
+        }
+        Progress progress = new Progress();
+        try {
+            progress.rows = Long.parseLong(properties.getProperty("rows", ""));
+        } catch (NumberFormatException e) {
+            throw new ResumeMismatchException("Invalid progress file " + this.progressFile);
+        }
+        progress.digest = properties.getProperty("digest");
+        checkProgressProperty(properties, "table", this.table);
+        checkProgressProperty(properties, "format", format.name().toLowerCase());
+        checkProgressProperty(properties, "input", this.inputName);
+        return progress;
+    }
+
+    private void checkProgressProperty(Properties properties, String name, String expected) throws IOException {
+        String saved = properties.getProperty(name);
+        if(!expected.equals(saved)) {
+            throw new ResumeMismatchException("Progress file " + this.progressFile + " is for " + name + " " + saved + ", not " + expected);
+        }
+    }
+
+    private void checkDigest(Progress progress, MessageDigest digest) throws IOException {
+        if(!toHex(snapshot(digest)).equals(progress.digest)) {
+            throw new ResumeMismatchException("The first " + progress.rows + " rows of the input differ from the rows committed in " + this.progressFile);
+        }
+    }
+
+    private void writeProgress(long committed, MessageDigest digest, OutputFormat format) throws IOException {
+        if(this.progressFile == null) {
+            return ;
+        }
+        Properties properties = new Properties();
+        properties.setProperty("table", this.table);
+        properties.setProperty("format", format.name().toLowerCase());
+        properties.setProperty("input", this.inputName);
+        properties.setProperty("rows", Long.toString(committed));
+        properties.setProperty("digest", toHex(snapshot(digest)));
+
+        File parentDir = this.progressFile.getAbsoluteFile().getParentFile();
+        File tempFile = File.createTempFile(this.progressFile.getName(), ".tmp", parentDir);
+        try {
+            try(OutputStream out = new FileOutputStream(tempFile)) {
+                properties.store(out, null);
+            }
+            Files.move(tempFile.toPath(), this.progressFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            tempFile.delete();
+        }
+    }
+
+    private static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Feeds a row's key and value with their lengths, so ("ab", "c") and ("a", "bc") differ. A null value is -1.
+     */
+    private static void updateDigest(MessageDigest digest, String[] row) {
+        for(String field : row) {
+            if(field == null) {
+                digest.update("-1:".getBytes(StandardCharsets.UTF_8));
+                continue;
+            }
+            byte[] bytes = field.getBytes(StandardCharsets.UTF_8);
+            digest.update((bytes.length + ":").getBytes(StandardCharsets.UTF_8));
+            digest.update(bytes);
+        }
+    }
+
+    /**
+     * @return the digest of the rows so far, the running digest keeps going
+     */
+    private static byte[] snapshot(MessageDigest digest) {
+        try {
+            return ((MessageDigest) digest.clone()).digest();
+        } catch (CloneNotSupportedException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static String toHex(byte[] bytes) {
+        StringBuilder sb = new StringBuilder(bytes.length * 2);
+        for(byte b : bytes) {
+            sb.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Reads [key, value] rows as written by {@link OutputFormat#JSON} or {@link OutputFormat#CSV}.
+     */
+    abstract static class RowReader {
+        /**
+         * @return null at the end of the input
+         */
+        abstract String[] next() throws IOException;
+
+        static RowReader forFormat(Reader input, OutputFormat format) {
+            switch (format) {
+                case JSON:
+                    return new JsonRowReader(new BufferedReader(input));
+                case CSV:
+                    return new CsvRowReader(new BufferedReader(input));
+                default:
+                    throw new IllegalArgumentException("Import reads json or csv, not " + format.name().toLowerCase());
+            }
+        }
+    }
+
+    /**
+     * One {"key":"...","value":"..."} object per line. Blank lines are skipped.
+     */
+    static class JsonRowReader extends RowReader {
+        private final BufferedReader reader;
+        private long lineNumber = 0;
+        private String line;
+        private int pos;
+
+        JsonRowReader(BufferedReader reader) {
+            this.reader = reader;
+        }
+
+        @Override
+        String[] next() throws IOException {
+            do {
+                this.line = this.reader.readLine();
+                this.lineNumber++;
+                if(this.line == null)
+                    return null;
+            } while(this.line.trim().isEmpty());
+            this.pos = 0;
+
+            String key = null;
+            String value = null;
+            expect('{');
+            if(peek() != '}') {
+                do {
+                    String name = readString();
+                    expect(':');
+                    String fieldValue;
+                    if(peek() == 'n' && this.line.startsWith("null", this.pos)) {
+                        this.pos += 4;
+                        fieldValue = null;
+                    }else{
+                        fieldValue = readString();
+                    }
+                    if("key".equals(name)) {
+                        key = fieldValue;
+                    }else if("value".equals(name)) {
+                        value = fieldValue;
+                    }
+                } while(skipComma());
+            }
+            expect('}');
+            if(key == null) {
+                throw error("no key");
+            }
+            return new String[] { key, value };
+        }
+
+        private char peek() throws IOException {
+            while(this.pos < this.line.length() && Character.isWhitespace(this.line.charAt(this.pos))) {
+                this.pos++;
+            }
+            if(this.pos >= this.line.length()) {
+                throw error("unexpected end of line");
+            }
+            return this.line.charAt(this.pos);
+        }
+
+        private void expect(char c) throws IOException {
+            if(peek() != c) {
+                throw error("expected '" + c + "'");
+            }
+            this.pos++;
+        }
+
+        private boolean skipComma() throws IOException {
+            if(peek() == ',') {
+                this.pos++;
+                return true;
+            }
+            return false;
+        }
+
+        private String readString() throws IOException {
+            expect('"');
+            StringBuilder sb = new StringBuilder();
+            while(this.pos < this.line.length()) {
+                char c = this.line.charAt(this.pos++);
+                if(c == '"') {
+                    return sb.toString();
+                }
+                if(c != '\\') {
+                    sb.append(c);
+                    continue;
+                }
+                if(this.pos >= this.line.length()) {
+                    break;
+                }
+                char escaped = this.line.charAt(this.pos++);
+                switch (escaped) {
+                    case 'n':
+                        sb.append('\n');
+                        break;
+                    case 'r':
+                        sb.append('\r');
+                        break;
+                    case 't':
+                        sb.append('\t');
+                        break;
+                    case 'b':
+                        sb.append('\b');
+                        break;
+                    case 'f':
+                        sb.append('\f');
+                        break;
+                    case 'u':
+                        if(this.pos + 4 > this.line.length()) {
+                            throw error("bad \\u escape");
+                        }
+                        try {
+                            sb.append((char) Integer.parseInt(this.line.substring(this.pos, this.pos + 4), 16));
+                        } catch (NumberFormatException e) {
+                            throw error("bad \\u escape");
+                        }
+                        this.pos += 4;
+                        break;
+                    default:
+                        sb.append(escaped);
+                }
+            }
+            throw error("unterminated string");
+        }
+
+        private IOException error(String message) {
+            return new IOException("Line " + this.lineNumber + ": " + message);
+        }
+    }
+
+    /**
+     * RFC 4180 key,value records. Quoted fields may span lines.
+     */
+    static class CsvRowReader extends RowReader {
+        private final BufferedReader reader;
+        private long recordNumber = 0;
+
+        CsvRowReader(BufferedReader reader) {
+            this.reader = reader;
+        }
+
+        @Override
+        String[] next() throws IOException {
+            List<String> fields = new ArrayList<>(2);
+            StringBuilder field = new StringBuilder();
+            boolean quoted = false;
+            boolean inQuotes = false;
+            int c = this.reader.read();
+            if(c < 0) {
+                return null;
+            }
+            this.recordNumber++;
+            while(true) {
+                if(inQuotes) {
+                    if(c < 0) {
+                        throw new IOException("Record " + this.recordNumber + ": unterminated quoted field");
+                    }
+                    if(c == '"') {
+                        this.reader.mark(1);
+                        if(this.reader.read() == '"') {
+                            field.append('"');
+                        }else{
+                            this.reader.reset();
+                            inQuotes = false;
+                        }
+                    }else{
+                        field.append((char) c);
+                    }
+                }else if(c == '"' && field.length() == 0 && !quoted) {
+                    quoted = true;
+                    inQuotes = true;
+                }else if(c == ',') {
+                    fields.add(fieldValue(field, quoted));
+                    field.setLength(0);
+                    quoted = false;
+                }else if(c == '\r' || c == '\n' || c < 0) {
+                    if(c == '\r') {
+                        this.reader.mark(1);
+                        if(this.reader.read() != '\n')
+                            this.reader.reset();
+                    }
+                    fields.add(fieldValue(field, quoted));
+                    if(fields.size() == 1 && fields.get(0) == null) {
+                        // blank line
+                        fields.clear();
+                        c = this.reader.read();
+                        if(c < 0)
+                            return null;
+                        continue;
+                    }
+                    break;
+                }else{
+                    field.append((char) c);
+                }
+                c = this.reader.read();
+            }
+            if(fields.size() != 2 || fields.get(0) == null) {
+                throw new IOException("Record " + this.recordNumber + ": expected key,value");
+            }
+            return new String[] { fields.get(0), fields.get(1) };
+        }
+
+        private static String fieldValue(StringBuilder field, boolean quoted) {
+            return (field.length() == 0 && !quoted) ? null : field.toString();
+        }
+    }
+}
@@ -0,0 +1,165 @@
+package kr.jclab.simplejavasoft.simpleclusterconfig;
+
+import java.io.*;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * AppCDS (class data sharing) archive of the classes a CLI run loads.
+ *
+ * {@link #dump} runs the same command in a child JVM with -XX:ArchiveClassesAtExit (JDK 13+), so the
+ * archive holds the tool, the JDK classes it touches, the XML parser on a module scan and the JDBC
+ * driver as far as the JDK can archive them. Training runs the command for real, so only read-only
+ * operations are accepted. A JVM only maps an archive it was started with, so
+ * the launch options are written next to the archive as a java @argfile:
+ * <pre>
+ * java @config.jsa.args -jar simple-cluster-config.jar --op=get ...
+ * </pre>
+ */
+public final class CdsArchive {
+    /** Options for short CLI runs, not meant for the daemon. Used for training and both timed runs. */
+    private static final String[] LAUNCH_OPTIONS = {"-XX:TieredStopAtLevel=1", "-XX:+UseSerialGC"};
+    private static final int MEASURE_RUNS = 3;
+
+    private CdsArchive() {
+    }
+
+    public static File getArgsFile(File archive) {
+        return new File(archive.getPath() + ".args");
+    }
+
+    /**
+     * Trains the archive with one run of args (without the --dump-cds option), a read-only operation.
+     * The run is then timed with the same launch options, once without and once with the archive.
+     *
+     * @return exit code of the training run
+     */
+    public static int dump(File archive, String[] args) throws IOException, InterruptedException {
+        int javaVersion = getJavaVersion();
+        if(javaVersion < 13) {
+            System.err.println("--dump-cds needs JDK 13 or newer, running on " + System.getProperty("java.specification.version"));
+            return BatchRunner.STATUS_ERROR;
+        }
+        for(String path : getClassPath()) {
+            if(!new File(path).isFile()) {
+                System.err.println("--dump-cds needs the tool to run from jar files, not " + path);
+                return BatchRunner.STATUS_ERROR;
+            }
+        }
+        List<String> commandArgs = withoutDumpOption(args);
+
+        archive.delete();
+        List<String> trainingOptions = new ArrayList<>(Arrays.asList(LAUNCH_OPTIONS));
+        trainingOptions.add("-XX:ArchiveClassesAtExit=" + archive.getAbsolutePath());
+        int exitCode = runJava(trainingOptions, commandArgs, true);
+        if(!archive.isFile()) {
+            System.err.println("The JVM wrote no archive to " + archive.getAbsolutePath());
+            return BatchRunner.STATUS_ERROR;
+        }
+        List<String> launchOptions = getLaunchOptions(archive);
+        try(Writer writer = new OutputStreamWriter(new FileOutputStream(getArgsFile(archive)), "UTF-8")) {
+            for(String option : launchOptions) {
+                writer.write(option);
+                writer.write('\n');
+            }
+        }
+        System.err.println("Wrote " + archive.getAbsolutePath() + ", launch with: java @" + getArgsFile(archive).getAbsolutePath() + " ...");
+
+        // Both runs get the same options apart from the archive, so the difference is the archive's alone
+        long before = measure(Arrays.asList(LAUNCH_OPTIONS), commandArgs);
+        long after = measure(launchOptions, commandArgs);
+        System.err.println("Startup and run with " + Arrays.toString(LAUNCH_OPTIONS) + ", average of " + MEASURE_RUNS + ": " +
+                before + " ms without the archive, " + after + " ms with it");
+        return exitCode;
+    }
+
+    /**
+     * @return false if the archive is missing or older than a class path entry, so the JVM would not
+     *         use it (or should not)
+     */
+    public static boolean isFresh(File archive) {
+        long archiveModified = archive.lastModified();
+        if(archiveModified == 0) {
+            return false;
+        }
+        for(String path : getClassPath()) {
+            if(new File(path).lastModified() > archiveModified)
+                return false;
+        }
+        return true;
+    }
+
+    private static List<String> getLaunchOptions(File archive) {
+        List<String> options = new ArrayList<>(Arrays.asList(LAUNCH_OPTIONS));
+        options.add("-XX:SharedArchiveFile=" + archive.getAbsolutePath());
+        return options;
+    }
+
+    private static List<String> withoutDumpOption(String[] args) {
+        List<String> result = new ArrayList<>();
+        for(int i=0; i<args.length; i++) {
+            if("--dump-cds".equalsIgnoreCase(args[i])) {
+                i++;
+            }else if(!args[i].startsWith("--dump-cds=")) {
+                result.add(args[i]);
+            }
+        }
+        return result;
+    }
+
+    private static long measure(List<String> jvmOptions, List<String> commandArgs) throws IOException, InterruptedException {
+        long total = 0;
+        for(int i=0; i<MEASURE_RUNS; i++) {
+            long startTime = System.nanoTime();
+            runJava(jvmOptions, commandArgs, false);
+            total += System.nanoTime() - startTime;
+        }
+        return total / MEASURE_RUNS / 1000000L;
+    }
+
+    private static int runJava(List<String> jvmOptions, List<String> commandArgs, boolean inheritOutput) throws IOException, InterruptedException {
+        List<String> command = new ArrayList<>();
+        command.add(new File(new File(System.getProperty("java.home"), "bin"), "java").getPath());
+        command.addAll(jvmOptions);
+        command.add("-cp");
+        command.add(System.getProperty("java.class.path"));
+        command.add(SimpleClusterConfig.class.getName());
+        command.addAll(commandArgs);
+        ProcessBuilder processBuilder = new ProcessBuilder(command);
+        if(inheritOutput) {
+            processBuilder.inheritIO();
+            return processBuilder.start().waitFor();
+        }
+        processBuilder.redirectErrorStream(true);
+        Process process = processBuilder.start();
+        try(InputStream inputStream = process.getInputStream()) {
+            byte[] discard = new byte[8192];
+            while(inputStream.read(discard) >= 0) {
+                // the timed runs' output is dropped
+            }
+        }
+        return process.waitFor();
+    }
+
+    private static List<String> getClassPath() {
+        List<String> paths = new ArrayList<>();
+        for(String path : System.getProperty("java.class.path").split(File.pathSeparator)) {
+            if(!path.isEmpty())
+                paths.add(path);
+        }
+        return paths;
+    }
+
+    private static int getJavaVersion() {
+        String version = System.getProperty("java.specification.version");
+        if(version.startsWith("1.")) {
+            version = version.substring(2);
+        }
+        try {
+            return Integer.parseInt(version);
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+}
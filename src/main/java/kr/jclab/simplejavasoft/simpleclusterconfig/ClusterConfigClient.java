@@ -0,0 +1,183 @@
+package kr.jclab.simplejavasoft.simpleclusterconfig;
+
+import kr.jclab.simplejavasoft.simpleclusterconfig.dialect.SqlDialect;
+
+import javax.sql.DataSource;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.*;
+
+/**
+ * In-process access to the config table, safe to share between threads.
+ *
+ * Connections are taken from the DataSource and kept while idle, up to maxConnections, each with its own
+ * {@link ConfigStore} and cached prepared statements. So a read is one statement execution on a warm
+ * connection. Writes run as single autocommit statements (see {@link ConfigStore#setOptimistic(boolean)}).
+ */
+public class ClusterConfigClient implements AutoCloseable {
+    private final IdlePool<ConfigStore> stores;
+    private volatile long watchMaxIntervalMillis = 5000;
+
+    public ClusterConfigClient(DataSource dataSource, SqlDialect dialect, String table) {
+        this(dataSource, dialect, table, 4);
+    }
+
+    public ClusterConfigClient(final DataSource dataSource, final SqlDialect dialect, final String table, int maxConnections) {
+        this.stores = new IdlePool<ConfigStore>(maxConnections, 300000) {
+            @Override
+            protected ConfigStore open() throws SQLException {
+                ConfigStore store = new ConfigStore(dataSource.getConnection(), dialect, table, true);
+                store.setOptimistic(true);
+                return store;
+            }
+
+            @Override
+            protected void dispose(ConfigStore store) {
+                closeQuietly(store);
+            }
+        };
+    }
+
+    /**
+     * @param idleTimeoutMillis connections idle for longer are closed instead of reused
+     */
+    public void setIdleTimeoutMillis(long idleTimeoutMillis) {
+        this.stores.setIdleTimeoutMillis(idleTimeoutMillis);
+    }
+
+    /**
+     * @see ConfigWatcher#setMaxIntervalMillis(long)
+     */
+    public void setWatchMaxIntervalMillis(long watchMaxIntervalMillis) {
+        this.watchMaxIntervalMillis = watchMaxIntervalMillis;
+    }
+
+    /**
+     * @return null if the key does not exist
+     */
+    public String get(String key) throws SQLException {
+        return execute(new Operation(Operation.Type.GET, key, null));
+    }
+
+    public void set(String key, String value) throws SQLException {
+        execute(new Operation(Operation.Type.SET, key, value));
+    }
+
+    /**
+     * @param delta negative to decrement
+     * @return the value after adding delta
+     */
+    public long increment(String key, long delta) throws SQLException {
+        String value = execute(new Operation(Operation.Type.INCREMENT, key, Long.toString(delta)));
+        if(value == null) {
+            throw new SQLException("Counter " + key + " vanished during increment");
+        }
+        try {
+            return Long.parseLong(value.trim());
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Counter " + key + " is not an integer: " + value);
+        }
+    }
+
+    /**
+     * @return the found keys in the order requested
+     */
+    public Map<String, String> mget(Collection<String> keys) throws SQLException {
+        ConfigStore store = borrow();
+        boolean broken = false;
+        try {
+            store.useAutoCommit(Connection.TRANSACTION_READ_COMMITTED);
+            Map<String, String> values = store.getAll(keys);
+            Map<String, String> result = new LinkedHashMap<>();
+            for(String key : keys) {
+                if(values.containsKey(key))
+                    result.put(key, values.get(key));
+            }
+            return result;
+        } catch (SQLException e) {
+            broken = isBroken(store);
+            throw e;
+        } finally {
+            release(store, broken);
+        }
+    }
+
+    /**
+     * Blocks until the key is written, created or deleted after this call started. Holds a connection
+     * while waiting.
+     *
+     * @param timeoutMillis 0 to wait without a limit
+     * @return false on timeout
+     */
+    public boolean watch(String key, long timeoutMillis) throws SQLException, InterruptedException {
+        ConfigStore store = borrow();
+        boolean broken = false;
+        ConfigWatcher watcher = new ConfigWatcher(store, key, false);
+        watcher.setMaxIntervalMillis(this.watchMaxIntervalMillis);
+        try {
+            watcher.start();
+            return watcher.await(timeoutMillis);
+        } catch (SQLException e) {
+            broken = isBroken(store);
+            throw e;
+        } finally {
+            try {
+                if(!broken)
+                    watcher.close();
+            } finally {
+                release(store, broken);
+            }
+        }
+    }
+
+    private String execute(Operation operation) throws SQLException {
+        ConfigStore store = borrow();
+        boolean broken = false;
+        try {
+            return store.execute(operation);
+        } catch (SQLException e) {
+            broken = isBroken(store);
+            throw e;
+        } finally {
+            release(store, broken);
+        }
+    }
+
+    private ConfigStore borrow() throws SQLException {
+        try {
+            return this.stores.borrow();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SQLException("Interrupted while waiting for a connection", e);
+        }
+    }
+
+    private void release(ConfigStore store, boolean broken) {
+        this.stores.release(store, broken);
+    }
+
+    private static boolean isBroken(ConfigStore store) {
+        try {
+            return !store.getConnection().isValid(2);
+        } catch (SQLException e) {
+            return true;
+        }
+    }
+
+    private static void closeQuietly(ConfigStore store) {
+        store.close();
+        try {
+            store.getConnection().close();
+        } catch (SQLException e) {
+            // already broken
+        }
+    }
+
+    /**
+     * Closes idle connections. Connections in use are closed when their call returns.
+     */
+    @Override
+    public void close() {
+        this.stores.close();
+    }
+}
@@ -0,0 +1,303 @@
+package kr.jclab.simplejavasoft.simpleclusterconfig;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+
+/**
+ * Local copy of config values for reads while the database is slow or down.
+ *
+ * The file is memory-mapped and sorted by the keys' UTF-8 bytes, with an offset table in front,
+ * so a lookup is a binary search comparing bytes in place. Only the found value is decoded.
+ *
+ * Layout: magic, version, entry count, count x entry offset, then per entry the time it was read
+ * from the database, key length, key, value length (-1 for a key known not to exist) and value.
+ */
+public class ConfigSnapshot {
+    private static final int MAGIC = 0x53434b56; // "SCKV"
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 12;
+
+    private final ByteBuffer buffer;
+    private final int count;
+
+    private ConfigSnapshot(ByteBuffer buffer, int count) {
+        this.buffer = buffer;
+        this.count = count;
+    }
+
+    public static class Entry {
+        private final String key;
+        private final String value;
+        private final long refreshedMillis;
+
+        public Entry(String key, String value, long refreshedMillis) {
+            this.key = key;
+            this.value = value;
+            this.refreshedMillis = refreshedMillis;
+        }
+
+        public String getKey() {
+            return key;
+        }
+
+        /**
+         * @return null if the key did not exist
+         */
+        public String getValue() {
+            return value;
+        }
+
+        public long getRefreshedMillis() {
+            return refreshedMillis;
+        }
+    }
+
+    /**
+     * @return an empty snapshot if the file is missing or not a valid snapshot
+     */
+    public static ConfigSnapshot open(File file) {
+        if(!file.isFile()) {
+            return empty();
+        }
+        try(FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            if(channel.size() < HEADER_SIZE || channel.size() > Integer.MAX_VALUE) {
+                return empty();
+            }
+            // The mapping stays valid after the channel is closed
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            if(buffer.getInt(0) != MAGIC || buffer.getInt(4) != VERSION) {
+                return empty();
+            }
+            int count = buffer.getInt(8);
+            if(count < 0 || HEADER_SIZE + (long) count * 4 > buffer.limit()) {
+                return empty();
+            }
+            return new ConfigSnapshot(buffer, count);
+        } catch (IOException e) {
+            return empty();
+        }
+    }
+
+    private static ConfigSnapshot empty() {
+        return new ConfigSnapshot(ByteBuffer.allocate(0), 0);
+    }
+
+    public int size() {
+        return count;
+    }
+
+    /**
+     * @return null if the key is not in the snapshot (or the file is damaged)
+     */
+    public Entry find(String key) {
+        byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+        try {
+            int low = 0;
+            int high = this.count - 1;
+            while(low <= high) {
+                int mid = (low + high) >>> 1;
+                int offset = this.buffer.getInt(HEADER_SIZE + mid * 4);
+                int cmp = compareKey(offset, keyBytes);
+                if(cmp < 0) {
+                    low = mid + 1;
+                }else if(cmp > 0) {
+                    high = mid - 1;
+                }else{
+                    return readEntry(offset);
+                }
+            }
+        } catch (IndexOutOfBoundsException | IllegalArgumentException e) {
+            // damaged file, treated as a miss
+        }
+        return null;
+    }
+
+    /**
+     * @return every entry in key order
+     */
+    public List<Entry> entries() {
+        List<Entry> entries = new ArrayList<>(this.count);
+        try {
+            for(int i=0; i<this.count; i++) {
+                entries.add(readEntry(this.buffer.getInt(HEADER_SIZE + i * 4)));
+            }
+        } catch (IndexOutOfBoundsException | IllegalArgumentException e) {
+            return new ArrayList<>();
+        }
+        return entries;
+    }
+
+    private int compareKey(int offset, byte[] keyBytes) {
+        int keyLength = this.buffer.getInt(offset + 8);
+        int keyOffset = offset + 12;
+        int length = Math.min(keyLength, keyBytes.length);
+        for(int i=0; i<length; i++) {
+            int a = this.buffer.get(keyOffset + i) & 0xff;
+            int b = keyBytes[i] & 0xff;
+            if(a != b)
+                return a - b;
+        }
+        return keyLength - keyBytes.length;
+    }
+
+    private Entry readEntry(int offset) {
+        long refreshedMillis = this.buffer.getLong(offset);
+        int keyLength = this.buffer.getInt(offset + 8);
+        String key = decode(offset + 12, keyLength);
+        int valueOffset = offset + 12 + keyLength;
+        int valueLength = this.buffer.getInt(valueOffset);
+        String value = (valueLength >= 0) ? decode(valueOffset + 4, valueLength) : null;
+        return new Entry(key, value, refreshedMillis);
+    }
+
+    private String decode(int offset, int length) {
+        ByteBuffer slice = this.buffer.duplicate();
+        slice.limit(offset + length).position(offset);
+        return StandardCharsets.UTF_8.decode(slice).toString();
+    }
+
+    /**
+     * Replaces the file with the given entries.
+     */
+    public static void write(File file, Collection<Entry> entries) throws IOException {
+        FileChannel lock = lock(file);
+        try {
+            writeFile(file, entries);
+        } finally {
+            lock.close();
+        }
+    }
+
+    /**
+     * Writers hold a lock on "&lt;file&gt;.lock" while they read, merge and replace the file. Readers need
+     * no lock, the file is only ever replaced by a rename.
+     *
+     * @return closing the channel releases the lock
+     */
+    private static FileChannel lock(File file) throws IOException {
+        File parentDir = file.getAbsoluteFile().getParentFile();
+        if(parentDir != null && !parentDir.isDirectory()) {
+            parentDir.mkdirs();
+        }
+        FileChannel channel = FileChannel.open(new File(file.getPath() + ".lock").toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        try {
+            channel.lock();
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+        return channel;
+    }
+
+    private static void writeFile(File file, Collection<Entry> entries) throws IOException {
+        List<byte[]> keys = new ArrayList<>(entries.size());
+        final Map<byte[], Entry> entryMap = new IdentityHashMap<>();
+        for(Entry entry : entries) {
+            byte[] key = entry.getKey().getBytes(StandardCharsets.UTF_8);
+            keys.add(key);
+            entryMap.put(key, entry);
+        }
+        Collections.sort(keys, new Comparator<byte[]>() {
+            @Override
+            public int compare(byte[] a, byte[] b) {
+                int length = Math.min(a.length, b.length);
+                for(int i=0; i<length; i++) {
+                    int cmp = (a[i] & 0xff) - (b[i] & 0xff);
+                    if(cmp != 0)
+                        return cmp;
+                }
+                return a.length - b.length;
+            }
+        });
+
+        ByteArrayOutputStream data = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(data);
+        int[] offsets = new int[keys.size()];
+        int base = HEADER_SIZE + keys.size() * 4;
+        for(int i=0; i<keys.size(); i++) {
+            byte[] key = keys.get(i);
+            Entry entry = entryMap.get(key);
+            offsets[i] = base + out.size();
+            out.writeLong(entry.getRefreshedMillis());
+            out.writeInt(key.length);
+            out.write(key);
+            if(entry.getValue() != null) {
+                byte[] value = entry.getValue().getBytes(StandardCharsets.UTF_8);
+                out.writeInt(value.length);
+                out.write(value);
+            }else{
+                out.writeInt(-1);
+            }
+        }
+        out.flush();
+
+        File parentDir = file.getAbsoluteFile().getParentFile();
+        Path tempFile = Files.createTempFile(parentDir.toPath(), file.getName(), ".tmp");
+        try {
+            try(DataOutputStream fileOut = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tempFile)))) {
+                fileOut.writeInt(MAGIC);
+                fileOut.writeInt(VERSION);
+                fileOut.writeInt(keys.size());
+                for(int offset : offsets) {
+                    fileOut.writeInt(offset);
+                }
+                data.writeTo(fileOut);
+            }
+            Files.move(tempFile, file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(tempFile);
+        }
+    }
+
+    /**
+     * Merges freshly read values into the file. A null value records that the key does not exist.
+     * The file is read again under the lock, so entries written by other processes in the meantime are kept.
+     *
+     * @param keepUnchangedMillis the file is not rewritten if every value is already in it, refreshed
+     *                            no longer ago than this
+     */
+    public static void update(File file, Map<String, String> values, long keepUnchangedMillis) throws IOException {
+        long now = System.currentTimeMillis();
+        if(isCurrent(open(file), values, now - keepUnchangedMillis)) {
+            return ;
+        }
+        FileChannel lock = lock(file);
+        try {
+            ConfigSnapshot current = open(file);
+            if(isCurrent(current, values, now - keepUnchangedMillis)) {
+                return ;
+            }
+            Map<String, Entry> merged = new HashMap<>();
+            for(Entry entry : current.entries()) {
+                merged.put(entry.getKey(), entry);
+            }
+            for(Map.Entry<String, String> value : values.entrySet()) {
+                merged.put(value.getKey(), new Entry(value.getKey(), value.getValue(), now));
+            }
+            writeFile(file, merged.values());
+        } finally {
+            lock.close();
+        }
+    }
+
+    private static boolean isCurrent(ConfigSnapshot snapshot, Map<String, String> values, long refreshedSince) {
+        for(Map.Entry<String, String> value : values.entrySet()) {
+            Entry entry = snapshot.find(value.getKey());
+            if(entry == null || entry.getRefreshedMillis() < refreshedSince) {
+                return false;
+            }
+            if((entry.getValue() != null) ? !entry.getValue().equals(value.getValue()) : value.getValue() != null) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
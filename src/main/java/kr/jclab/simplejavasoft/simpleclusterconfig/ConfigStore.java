@@ -0,0 +1,1067 @@
+package kr.jclab.simplejavasoft.simpleclusterconfig;
+
+import kr.jclab.simplejavasoft.simpleclusterconfig.dialect.SqlDialect;
+import kr.jclab.simplejavasoft.simpleclusterconfig.metrics.Metrics;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.sql.*;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * SQL for the config table, bound to one connection.
+ *
+ * A counter can be striped over K shard rows "key#0".."key#K-1", with K stored in the row "key#stripes".
+ * Increments then update one shard, and reads sum the base row and every shard found by one query,
+ * so reads are right whatever stripe count a writer last saw. A set of a striped counter deletes its
+ * shards and writes the base row in one transaction.
+ */
+public class ConfigStore {
+    private static final int MAX_IN_PARAMS = 500;
+    private static final long RETRY_BASE_DELAY_MILLIS = 5;
+    private static final long RETRY_MAX_DELAY_MILLIS = 200;
+    private static final int MAX_CACHED_STATEMENTS = 32;
+
+    public static final String STRIPES_SUFFIX = "#stripes";
+
+    public enum StripeSelection {
+        /** A random shard for every increment. */
+        RANDOM,
+        /** Always the same shard for this host, so one node never contends with itself. */
+        NODE
+    }
+
+    /**
+     * Stripe count per table and key as last seen by a read or increment of the key, 0 for plain keys.
+     * Only used to spread writes. The first increment of a key in a process reads its "#stripes" row,
+     * later ones trust this cache, which every increment refreshes from its own statement.
+     */
+    private static final ConcurrentMap<String, Integer> stripeCounts = new ConcurrentHashMap<>();
+    private static volatile Integer nodeHash = null;
+
+    private final Connection connection;
+    private final SqlDialect dialect;
+    private final String table;
+    private StripeSelection stripeSelection = StripeSelection.RANDOM;
+    private boolean optimistic = false;
+    private int maxRetries = 5;
+    private long retryCount = 0;
+    private int isolation = -1;
+    /** Resolved on first use, null if increments need a separate read */
+    private String incrementReturningSql = null;
+    private boolean incrementReturningResolved = false;
+    /** null if statements are closed after every use */
+    private final Map<String, PreparedStatement> statementCache;
+
+    public ConfigStore(Connection connection, SqlDialect dialect, String table) {
+        this(connection, dialect, table, false);
+    }
+
+    /**
+     * @param cacheStatements keep prepared statements open for the life of the store, until {@link #close()}.
+     *                        For stores that are kept with a long lived connection.
+     */
+    public ConfigStore(Connection connection, SqlDialect dialect, String table, boolean cacheStatements) {
+        this.connection = connection;
+        this.dialect = dialect;
+        this.table = table;
+        if(cacheStatements) {
+            this.statementCache = new LinkedHashMap<String, PreparedStatement>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, PreparedStatement> eldest) {
+                    if(size() <= MAX_CACHED_STATEMENTS)
+                        return false;
+                    closeQuietly(eldest.getValue());
+                    return true;
+                }
+            };
+        }else{
+            this.statementCache = null;
+        }
+    }
+
+    public Connection getConnection() {
+        return connection;
+    }
+
+    public SqlDialect getDialect() {
+        return dialect;
+    }
+
+    public String getTable() {
+        return table;
+    }
+
+    public void setStripeSelection(StripeSelection stripeSelection) {
+        this.stripeSelection = stripeSelection;
+    }
+
+    /**
+     * Runs set, increment and decrement as single autocommit statements instead of REPEATABLE_READ transactions.
+     */
+    public void setOptimistic(boolean optimistic) {
+        this.optimistic = optimistic;
+    }
+
+    /**
+     * @param maxRetries how often a single statement operation is retried after a serialization failure or deadlock
+     */
+    public void setMaxRetries(int maxRetries) {
+        this.maxRetries = maxRetries;
+    }
+
+    /**
+     * @return number of retries done by this store so far
+     */
+    public long getRetryCount() {
+        return retryCount;
+    }
+
+    /**
+     * @return a new statement, the caller closes it
+     */
+    public PreparedStatement prepareWrite(Operation.Type type) throws SQLException {
+        return this.connection.prepareStatement(writeSql(type));
+    }
+
+    private String writeSql(Operation.Type type) {
+        switch (type) {
+            case SET:
+                return this.dialect.upsertSql(this.table);
+            case INCREMENT:
+            case DECREMENT:
+                return this.dialect.incrementSql(this.table);
+            default:
+                throw new IllegalArgumentException("Not a write operation: " + type);
+        }
+    }
+
+    private PreparedStatement prepare(String sql) throws SQLException {
+        if(this.statementCache == null) {
+            return this.connection.prepareStatement(sql);
+        }
+        PreparedStatement preparedStatement = this.statementCache.get(sql);
+        if(preparedStatement == null || preparedStatement.isClosed()) {
+            preparedStatement = this.connection.prepareStatement(sql);
+            this.statementCache.put(sql, preparedStatement);
+        }
+        return preparedStatement;
+    }
+
+    private void release(PreparedStatement preparedStatement) throws SQLException {
+        if(this.statementCache == null) {
+            preparedStatement.close();
+        }else{
+            preparedStatement.clearParameters();
+        }
+    }
+
+    private static void closeQuietly(Statement statement) {
+        try {
+            statement.close();
+        } catch (SQLException e) {
+            // the connection is gone
+        }
+    }
+
+    /**
+     * Closes the cached statements. The connection stays open.
+     */
+    public void close() {
+        if(this.statementCache != null) {
+            for(PreparedStatement preparedStatement : this.statementCache.values()) {
+                closeQuietly(preparedStatement);
+            }
+            this.statementCache.clear();
+        }
+    }
+
+    /**
+     * Binds a statement from {@link #prepareWrite(Operation.Type)}. A set must be followed by
+     * {@link #completeSets(List, int[])} (or be run by {@link #write(Operation)}), for striped counters.
+     */
+    public void bindWrite(PreparedStatement preparedStatement, Operation operation) throws SQLException {
+        switch (operation.getType()) {
+            case INCREMENT:
+                preparedStatement.setString(1, selectShard(operation.getKey()));
+                preparedStatement.setString(2, Long.toString(parseDelta(operation.getValue())));
+                break;
+            case DECREMENT:
+                preparedStatement.setString(1, selectShard(operation.getKey()));
+                preparedStatement.setString(2, Long.toString(-parseDelta(operation.getValue())));
+                break;
+            default:
+                bindUpsert(preparedStatement, operation.getKey(), operation.getValue(), operation.getKey() + STRIPES_SUFFIX);
+        }
+    }
+
+    /**
+     * @param stripesKey the "#stripes" row that makes the upsert write nothing, null to always write
+     */
+    private void bindUpsert(PreparedStatement preparedStatement, String key, String value, String stripesKey) throws SQLException {
+        preparedStatement.setString(1, key);
+        preparedStatement.setString(2, value);
+        if(!this.dialect.isUpsertStripeCheckSupported()) {
+            return ;
+        }
+        if(stripesKey != null) {
+            preparedStatement.setString(3, stripesKey);
+        }else{
+            preparedStatement.setNull(3, Types.VARCHAR);
+        }
+    }
+
+    /**
+     * Binds a set from {@link #prepareWrite(Operation.Type)} that writes the row as given, also a shard or
+     * "#stripes" row or the base row of a striped counter. It needs no {@link #completeSets(List, int[])}.
+     */
+    public void bindRawSet(PreparedStatement preparedStatement, String key, String value) throws SQLException {
+        bindUpsert(preparedStatement, key, value, null);
+    }
+
+    private static long parseDelta(String value) {
+        try {
+            return Long.parseLong(value.trim());
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Not an integer: " + value);
+        }
+    }
+
+    public void write(Operation operation) throws SQLException {
+        if(operation.getType() == Operation.Type.SET && !this.dialect.isUpsertStripeCheckSupported()) {
+            // the upsert would overwrite a striped counter's base row and keep its shards
+            String stripesKey = operation.getKey() + STRIPES_SUFFIX;
+            int stripes = parseStripeCount(getRows(Collections.singletonList(stripesKey)).get(stripesKey));
+            rememberStripeCount(operation.getKey(), stripes);
+            if(stripes > 0) {
+                setStripedValue(operation.getKey(), operation.getValue());
+                return ;
+            }
+        }
+        PreparedStatement preparedStatement = prepare(writeSql(operation.getType()));
+        int updated;
+        try {
+            bindWrite(preparedStatement, operation);
+            updated = preparedStatement.executeUpdate();
+        } finally {
+            release(preparedStatement);
+        }
+        if(updated == 0 && operation.getType() == Operation.Type.SET) {
+            setStripedValue(operation.getKey(), operation.getValue());
+        }
+    }
+
+    /**
+     * Finishes a batch of sets: keys the upsert skipped because they are striped counters are set with
+     * {@link #setStripedValue(String, String)}. Runs in the caller's transaction.
+     *
+     * @param rows          {key, value} of every set, in batch order
+     * @param updateCounts  from executeBatch(), null if not known (e.g. after a multi-row upsert, which
+     *                      does not skip striped counters); then the keys' "#stripes" rows are looked up.
+     *                      Also looked up when the dialect's upsert has no striped counter check.
+     */
+    public void completeSets(List<String[]> rows, int[] updateCounts) throws SQLException {
+        if(!this.dialect.isUpsertStripeCheckSupported()) {
+            updateCounts = null;
+        }
+        List<String[]> unknown = new ArrayList<>();
+        for(int i=0; i<rows.size(); i++) {
+            int updated = (updateCounts != null && i < updateCounts.length) ? updateCounts[i] : Statement.SUCCESS_NO_INFO;
+            if(updated == 0) {
+                setStripedValue(rows.get(i)[0], rows.get(i)[1]);
+            }else if(updated == Statement.SUCCESS_NO_INFO) {
+                unknown.add(rows.get(i));
+            }
+        }
+        if(unknown.isEmpty()) {
+            return ;
+        }
+        List<String> stripesKeys = new ArrayList<>(unknown.size());
+        for(String[] row : unknown) {
+            stripesKeys.add(row[0] + STRIPES_SUFFIX);
+        }
+        Map<String, String> stripesRows = getRows(stripesKeys);
+        for(String[] row : unknown) {
+            if(parseStripeCount(stripesRows.get(row[0] + STRIPES_SUFFIX)) > 0) {
+                setStripedValue(row[0], row[1]);
+            }
+        }
+    }
+
+    /**
+     * Sets a striped counter: its shards are deleted and the value is written to the base row, so the
+     * counter reads as exactly this value. In the caller's transaction, or in its own one in autocommit mode.
+     */
+    public void setStripedValue(String key, String value) throws SQLException {
+        boolean autoCommit = this.connection.getAutoCommit();
+        if(autoCommit) {
+            this.connection.setAutoCommit(false);
+        }
+        try {
+            deleteShards(key);
+            PreparedStatement preparedStatement = prepare(this.dialect.upsertSql(this.table));
+            try {
+                bindUpsert(preparedStatement, key, value, null);
+                preparedStatement.executeUpdate();
+            } finally {
+                release(preparedStatement);
+            }
+            if(autoCommit) {
+                this.connection.commit();
+            }
+        } catch (SQLException | RuntimeException e) {
+            if(autoCommit) {
+                this.connection.rollback();
+            }
+            throw e;
+        } finally {
+            if(autoCommit) {
+                this.connection.setAutoCommit(true);
+            }
+        }
+    }
+
+    private void deleteShards(String key) throws SQLException {
+        List<String> shardKeys = new ArrayList<>();
+        for(String[] row : selectWithShards(key)) {
+            if(isShardKey(key, row[0]))
+                shardKeys.add(row[0]);
+        }
+        if(shardKeys.isEmpty()) {
+            return ;
+        }
+        try(PreparedStatement preparedStatement = this.connection.prepareStatement(this.dialect.deleteSql(this.table))) {
+            for(String shardKey : shardKeys) {
+                preparedStatement.setString(1, shardKey);
+                preparedStatement.addBatch();
+            }
+            preparedStatement.executeBatch();
+        }
+    }
+
+    /**
+     * Runs one operation.
+     *
+     * Reads and compare-and-set run with autocommit on and READ_COMMITTED, as does a set or increment
+     * in optimistic mode. Everything else runs in its own REPEATABLE_READ transaction.
+     *
+     * @return the key's value after the operation, null if the key does not exist.
+     *         For a getv "version value", for a cas the new version.
+     * @throws VersionConflictException if a cas finds another version
+     */
+    public String execute(Operation operation) throws SQLException {
+        long started = Metrics.start();
+        try {
+            return executeOperation(operation);
+        } finally {
+            if(started != 0)
+                Metrics.stop("sql." + operation.getType().name().toLowerCase(Locale.ROOT), started);
+        }
+    }
+
+    private String executeOperation(Operation operation) throws SQLException {
+        switch (operation.getType()) {
+            case GET:
+                useAutoCommit(Connection.TRANSACTION_READ_COMMITTED);
+                return get(operation.getKey());
+            case GETV:
+                useAutoCommit(Connection.TRANSACTION_READ_COMMITTED);
+                return getVersioned(operation.getKey());
+            case CAS:
+                useAutoCommit(Connection.TRANSACTION_READ_COMMITTED);
+                return executeWithRetry(operation);
+            case SET:
+            case INCREMENT:
+            case DECREMENT:
+                if(this.optimistic) {
+                    useAutoCommit(Connection.TRANSACTION_READ_COMMITTED);
+                    return executeWithRetry(operation);
+                }
+                break;
+        }
+        this.connection.setAutoCommit(false);
+        setIsolation(Connection.TRANSACTION_REPEATABLE_READ);
+        try {
+            String value;
+            switch (operation.getType()) {
+                case SET:
+                    write(operation);
+                    value = operation.getValue();
+                    break;
+                case INCREMENT:
+                case DECREMENT:
+                    value = incrementReturning(operation, false);
+                    break;
+                case RESERVE: {
+                    long[] range = reserve(operation.getKey(), Long.parseLong(operation.getValue()));
+                    value = range[0] + " " + range[1];
+                    break;
+                }
+                case NEXT_ID:
+                    value = Long.toString(reserve(operation.getKey(), 1)[0]);
+                    break;
+                case STRIPE: {
+                    int stripes = Integer.parseInt(operation.getValue());
+                    setStripeCount(operation.getKey(), stripes);
+                    value = Integer.toString(stripes);
+                    break;
+                }
+                default:
+                    value = get(operation.getKey());
+            }
+            this.connection.commit();
+            return value;
+        } catch (SQLException | RuntimeException e) {
+            this.connection.rollback();
+            throw e;
+        }
+    }
+
+    /**
+     * Ends a running transaction and switches to autocommit with the isolation level.
+     */
+    public void useAutoCommit(int isolation) throws SQLException {
+        if(!this.connection.getAutoCommit()) {
+            this.connection.commit();
+            this.connection.setAutoCommit(true);
+        }
+        setIsolation(isolation);
+    }
+
+    /**
+     * Skips the call when this store already set the level, drivers may send it to the server every time.
+     */
+    private void setIsolation(int isolation) throws SQLException {
+        if(this.isolation != isolation) {
+            this.connection.setTransactionIsolation(isolation);
+            this.isolation = isolation;
+        }
+    }
+
+    /**
+     * Runs a single statement operation, retrying serialization failures and deadlocks with jittered
+     * exponential backoff.
+     *
+     * @return the same as {@link #execute(Operation)}
+     */
+    private String executeWithRetry(Operation operation) throws SQLException {
+        for(int attempt = 0; ; attempt++) {
+            try {
+                switch (operation.getType()) {
+                    case CAS:
+                        return Long.toString(compareAndSet(operation.getKey(), operation.getExpectedVersion(), operation.getValue()));
+                    case SET:
+                        write(operation);
+                        return operation.getValue();
+                    default:
+                        return incrementReturning(operation, false);
+                }
+            } catch (SQLException e) {
+                if(attempt >= this.maxRetries || e instanceof VersionConflictException || !isRetryable(e)) {
+                    throw e;
+                }
+            }
+            this.retryCount++;
+            backOff(attempt, operation.getKey());
+        }
+    }
+
+    /**
+     * Counts a retry and sleeps before it, a random time between half and all of an exponential delay
+     * (5 ms doubling per attempt, at most 200 ms) so that conflicting clients do not retry in step.
+     *
+     * @param what named in the error when interrupted
+     */
+    static void backOff(int attempt, String what) throws SQLException {
+        Metrics.increment("retries");
+        long ceiling = Math.min(RETRY_MAX_DELAY_MILLIS, RETRY_BASE_DELAY_MILLIS << Math.min(attempt, 16));
+        try {
+            Thread.sleep(ThreadLocalRandom.current().nextLong(ceiling / 2, ceiling + 1));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SQLException("Interrupted while retrying " + what, e);
+        }
+    }
+
+    /**
+     * @return true for serialization failures (40001) and deadlocks (40P01), also when chained
+     */
+    public static boolean isRetryable(SQLException e) {
+        for(SQLException current = e; current != null; current = current.getNextException()) {
+            String state = current.getSQLState();
+            if("40001".equals(state) || "40P01".equals(state)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Sets the value if the row still has the expected version. Version 0 means the key must not exist yet.
+     *
+     * @return the new version
+     * @throws VersionConflictException if the key has another version
+     */
+    public long compareAndSet(String key, long expectedVersion, String value) throws SQLException {
+        if(expectedVersion < 0) {
+            throw new IllegalArgumentException("Version must not be negative: " + expectedVersion);
+        }
+        if(expectedVersion == 0) {
+            // Inside a transaction a failed insert must not abort it (PostgreSQL would), so use a savepoint
+            Savepoint savepoint = this.connection.getAutoCommit() ? null : this.connection.setSavepoint();
+            PreparedStatement preparedStatement = prepare(this.dialect.insertSql(this.table));
+            try {
+                preparedStatement.setString(1, key);
+                preparedStatement.setString(2, value);
+                preparedStatement.executeUpdate();
+                if(savepoint != null)
+                    this.connection.releaseSavepoint(savepoint);
+                return 1;
+            } catch (SQLException e) {
+                if(e.getSQLState() == null || !e.getSQLState().startsWith("23")) {
+                    throw e;
+                }
+                if(savepoint != null)
+                    this.connection.rollback(savepoint);
+            } finally {
+                release(preparedStatement);
+            }
+        }else{
+            PreparedStatement preparedStatement = prepare(this.dialect.compareAndSetSql(this.table));
+            try {
+                preparedStatement.setString(1, value);
+                preparedStatement.setString(2, key);
+                preparedStatement.setLong(3, expectedVersion);
+                if(preparedStatement.executeUpdate() > 0) {
+                    return expectedVersion + 1;
+                }
+            } finally {
+                release(preparedStatement);
+            }
+        }
+        Metrics.increment("conflicts");
+        throw new VersionConflictException(key, expectedVersion, getVersion(key));
+    }
+
+    /**
+     * @return "version value" of the row, null if the key does not exist
+     */
+    public String getVersioned(String key) throws SQLException {
+        PreparedStatement preparedStatement = prepare(this.dialect.selectVersionedSql(this.table));
+        try {
+            preparedStatement.setString(1, key);
+            try(ResultSet resultSet = preparedStatement.executeQuery()) {
+                if(resultSet.next()) {
+                    String value = resultSet.getString(2);
+                    return resultSet.getLong(1) + " " + ((value != null) ? value : "");
+                }
+                return null;
+            }
+        } finally {
+            release(preparedStatement);
+        }
+    }
+
+    private long getVersion(String key) throws SQLException {
+        PreparedStatement preparedStatement = prepare(this.dialect.selectVersionedSql(this.table));
+        try {
+            preparedStatement.setString(1, key);
+            try(ResultSet resultSet = preparedStatement.executeQuery()) {
+                return resultSet.next() ? resultSet.getLong(1) : 0;
+            }
+        } finally {
+            release(preparedStatement);
+        }
+    }
+
+    /**
+     * Advances the counter by count inside the caller's transaction.
+     *
+     * @return the allocated range {first, last}, both inclusive
+     */
+    public long[] reserve(String key, long count) throws SQLException {
+        if(count <= 0) {
+            throw new IllegalArgumentException("Count must be positive: " + count);
+        }
+        String value = incrementReturning(new Operation(Operation.Type.INCREMENT, key, Long.toString(count)), true);
+        if(value == null) {
+            throw new SQLException("Counter " + key + " vanished during reserve");
+        }
+        long last;
+        try {
+            last = Long.parseLong(value.trim());
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Counter " + key + " is not an integer: " + value);
+        }
+        return new long[] { last - count + 1, last };
+    }
+
+    /**
+     * @param plainOnly fail if the key is a striped counter, the caller rolls back
+     */
+    private String incrementReturning(Operation operation, boolean plainOnly) throws SQLException {
+        String key = operation.getKey();
+        String sql = getIncrementReturningSql();
+        if(sql != null && getStripeCount(key) == 0) {
+            String value = null;
+            int stripes = 0;
+            PreparedStatement preparedStatement = prepare(sql);
+            try {
+                bindWrite(preparedStatement, operation);
+                preparedStatement.setString(3, key + STRIPES_SUFFIX);
+                try(ResultSet resultSet = preparedStatement.executeQuery()) {
+                    if(resultSet.next()) {
+                        value = resultSet.getString(1);
+                        stripes = parseStripeCount(resultSet.getString(2));
+                    }
+                }
+            } finally {
+                release(preparedStatement);
+            }
+            rememberStripeCount(key, stripes);
+            if(stripes == 0) {
+                return value;
+            }
+            // Turned out to be striped: the base row was incremented and still counts, the total needs the shards
+        }else{
+            write(operation);
+        }
+        StripedValue current = read(key);
+        if(plainOnly && current.stripes > 0) {
+            throw new IllegalArgumentException("Counter " + key + " is striped, reserve needs a plain counter");
+        }
+        return current.value;
+    }
+
+    private String getIncrementReturningSql() throws SQLException {
+        if(!this.incrementReturningResolved) {
+            String sql = this.dialect.incrementReturningSql(this.table);
+            if(sql != null && !this.dialect.isIncrementReturningSupported(this.connection)) {
+                sql = null;
+            }
+            this.incrementReturningSql = sql;
+            this.incrementReturningResolved = true;
+        }
+        return this.incrementReturningSql;
+    }
+
+    /**
+     * Stores the stripe count of a counter. The current value stays in the base row and keeps being counted.
+     *
+     * @param stripes number of shard rows, at least 1
+     */
+    public void setStripeCount(String key, int stripes) throws SQLException {
+        if(stripes < 1) {
+            throw new IllegalArgumentException("Stripe count must be positive: " + stripes);
+        }
+        write(new Operation(Operation.Type.SET, key + STRIPES_SUFFIX, Integer.toString(stripes)));
+        rememberStripeCount(key, stripes);
+    }
+
+    /**
+     * @return the stripe count last seen for the key, 0 if it is not known to be striped.
+     *         Reads the "#stripes" row for a key not seen yet.
+     */
+    private int getStripeCount(String key) throws SQLException {
+        Integer stripes = stripeCounts.get(this.table + "\0" + key);
+        if(stripes == null) {
+            String stripesKey = key + STRIPES_SUFFIX;
+            stripes = parseStripeCount(getRows(Collections.singletonList(stripesKey)).get(stripesKey));
+            rememberStripeCount(key, stripes);
+        }
+        return stripes;
+    }
+
+    /**
+     * Reads the stripe counts of the keys not seen yet with one query, for batches of increments.
+     */
+    public void loadStripeCounts(Collection<String> keys) throws SQLException {
+        Set<String> stripesKeys = new LinkedHashSet<>();
+        for(String key : keys) {
+            if(!stripeCounts.containsKey(this.table + "\0" + key))
+                stripesKeys.add(key + STRIPES_SUFFIX);
+        }
+        if(stripesKeys.isEmpty()) {
+            return ;
+        }
+        Map<String, String> rows = getRows(stripesKeys);
+        for(String stripesKey : stripesKeys) {
+            rememberStripeCount(stripesKey.substring(0, stripesKey.length() - STRIPES_SUFFIX.length()), parseStripeCount(rows.get(stripesKey)));
+        }
+    }
+
+    private void rememberStripeCount(String key, int stripes) {
+        stripeCounts.put(this.table + "\0" + key, stripes);
+    }
+
+    private static int parseStripeCount(String value) {
+        if(value == null)
+            return 0;
+        try {
+            return Math.max(0, Integer.parseInt(value.trim()));
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    private String selectShard(String key) throws SQLException {
+        int stripes = getStripeCount(key);
+        if(stripes <= 0) {
+            return key;
+        }
+        int shard;
+        if(this.stripeSelection == StripeSelection.NODE) {
+            shard = (getNodeHash() & Integer.MAX_VALUE) % stripes;
+        }else{
+            shard = ThreadLocalRandom.current().nextInt(stripes);
+        }
+        return key + "#" + shard;
+    }
+
+    private static int getNodeHash() {
+        Integer hash = nodeHash;
+        if(hash == null) {
+            String hostname = System.getenv("HOSTNAME");
+            if(hostname == null) {
+                try {
+                    hostname = InetAddress.getLocalHost().getHostName();
+                } catch (UnknownHostException e) {
+                    hostname = "";
+                }
+            }
+            hash = hostname.hashCode();
+            nodeHash = hash;
+        }
+        return hash;
+    }
+
+    /**
+     * Reads a key. For a striped counter this is the sum of the base row and all shards, read with
+     * one range query over the primary key.
+     *
+     * @return null if the key does not exist
+     */
+    public String get(String key) throws SQLException {
+        return read(key).value;
+    }
+
+    /**
+     * {@link #get(String)}, also remembering the stripe count it saw.
+     */
+    private StripedValue read(String key) throws SQLException {
+        StripedValue current = mergeRows(key, selectWithShards(key));
+        rememberStripeCount(key, current.stripes);
+        return current;
+    }
+
+    private List<String[]> selectWithShards(String key) throws SQLException {
+        PreparedStatement preparedStatement = prepare(this.dialect.selectWithShardsSql(this.table));
+        try {
+            preparedStatement.setString(1, key);
+            preparedStatement.setString(2, SqlDialect.likePrefix(key + "#"));
+            List<String[]> rows = new ArrayList<>();
+            try(ResultSet resultSet = preparedStatement.executeQuery()) {
+                while(resultSet.next()) {
+                    rows.add(new String[] { resultSet.getString(1), resultSet.getString(2) });
+                }
+            }
+            return rows;
+        } finally {
+            release(preparedStatement);
+        }
+    }
+
+    private static class StripedValue {
+        /** null if the key does not exist */
+        final String value;
+        /** 0 for a plain key */
+        final int stripes;
+
+        StripedValue(String value, int stripes) {
+            this.value = value;
+            this.stripes = stripes;
+        }
+    }
+
+    /**
+     * Combines a key's own row with its "#stripes" row and shard rows, other rows are ignored.
+     *
+     * @param rows {key, value} pairs
+     */
+    private static StripedValue mergeRows(String key, List<String[]> rows) {
+        String base = null;
+        int stripes = 0;
+        long sum = 0;
+        boolean hasShard = false;
+        for(String[] row : rows) {
+            String rowKey = row[0];
+            String rowValue = row[1];
+            if(key.equals(rowKey)) {
+                base = rowValue;
+            }else if((key + STRIPES_SUFFIX).equals(rowKey)) {
+                stripes = parseStripeCount(rowValue);
+            }else if(rowValue != null && isShardKey(key, rowKey)) {
+                try {
+                    sum += Long.parseLong(rowValue.trim());
+                    hasShard = true;
+                } catch (NumberFormatException e) {
+                    // not a counter shard
+                }
+            }
+        }
+        if(stripes == 0) {
+            return new StripedValue(base, 0);
+        }
+        if(base != null) {
+            try {
+                sum += Long.parseLong(base.trim());
+            } catch (NumberFormatException e) {
+                // a non-numeric base value is ignored for striped counters
+            }
+        }else if(!hasShard) {
+            return new StripedValue(null, stripes);
+        }
+        return new StripedValue(Long.toString(sum), stripes);
+    }
+
+    public interface RowCallback {
+        void row(String key, String value);
+    }
+
+    /**
+     * Streams every key starting with the prefix, in code point order.
+     * Striped counters are reported once with their summed value. Rows are grouped by base key and a group is
+     * reported as soon as no later row can belong to it, so only a few keys are held at a time.
+     *
+     * @param prefix "" for all keys
+     * @return number of keys reported
+     */
+    public int list(String prefix, RowCallback callback) throws SQLException {
+        return list(prefix, false, callback);
+    }
+
+    /**
+     * Streams every stored row starting with the prefix as it is, shard and "#stripes" rows included,
+     * so that an import with {@link #bindRawSet(PreparedStatement, String, String)} restores striped counters.
+     *
+     * @return number of rows reported
+     */
+    public int listRows(String prefix, RowCallback callback) throws SQLException {
+        return list(prefix, true, callback);
+    }
+
+    private int list(String prefix, boolean raw, RowCallback callback) throws SQLException {
+        this.connection.setAutoCommit(false);
+        setIsolation(Connection.TRANSACTION_READ_COMMITTED);
+        int count = 0;
+        try(PreparedStatement preparedStatement = this.connection.prepareStatement(
+                this.dialect.selectRangeSql(this.table), ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY)) {
+            preparedStatement.setFetchSize(this.dialect.getStreamingFetchSize());
+            preparedStatement.setString(1, SqlDialect.likePrefix(prefix));
+            // A key's shards and "#stripes" row sort after it, but other keys can come in between ("a", "a!", "a#0")
+            Map<String, List<String[]>> pending = new LinkedHashMap<>();
+            try(ResultSet resultSet = preparedStatement.executeQuery()) {
+                while(resultSet.next()) {
+                    String rowKey = resultSet.getString(1);
+                    if(!rowKey.startsWith(prefix)) {
+                        // matched by a case insensitive LIKE
+                        continue;
+                    }
+                    if(raw) {
+                        callback.row(rowKey, resultSet.getString(2));
+                        count++;
+                        continue;
+                    }
+                    count += emitCompleteGroups(pending, rowKey, callback);
+                    String rowBase = baseKey(rowKey);
+                    List<String[]> group = pending.get(rowBase);
+                    if(group == null) {
+                        group = new ArrayList<>();
+                        pending.put(rowBase, group);
+                    }
+                    group.add(new String[] { rowKey, resultSet.getString(2) });
+                }
+            }
+            count += emitCompleteGroups(pending, null, callback);
+            this.connection.commit();
+        } catch (SQLException | RuntimeException e) {
+            this.connection.rollback();
+            throw e;
+        }
+        return count;
+    }
+
+    /**
+     * Reports the pending groups, oldest first, that can get no more rows once the rows have reached rowKey.
+     *
+     * @param rowKey null after the last row
+     */
+    private static int emitCompleteGroups(Map<String, List<String[]>> pending, String rowKey, RowCallback callback) {
+        int count = 0;
+        Iterator<Map.Entry<String, List<String[]>>> iterator = pending.entrySet().iterator();
+        while(iterator.hasNext()) {
+            Map.Entry<String, List<String[]>> entry = iterator.next();
+            // Every row of a group sorts before "<key>$", '$' being the character after '#'
+            if(rowKey != null && compareCodePoints(rowKey, entry.getKey() + "$") < 0) {
+                break;
+            }
+            count += emitGroup(entry.getKey(), entry.getValue(), callback);
+            iterator.remove();
+        }
+        return count;
+    }
+
+    /**
+     * Code point order, as used by {@link SqlDialect#selectRangeSql(String)}; String.compareTo() differs above U+FFFF.
+     */
+    private static int compareCodePoints(String a, String b) {
+        int i = 0;
+        while(i < a.length() && i < b.length()) {
+            int codePointA = a.codePointAt(i);
+            int codePointB = b.codePointAt(i);
+            if(codePointA != codePointB) {
+                return (codePointA < codePointB) ? -1 : 1;
+            }
+            i += Character.charCount(codePointA);
+        }
+        return a.length() - b.length();
+    }
+
+    private static int emitGroup(String key, List<String[]> group, RowCallback callback) {
+        boolean striped = false;
+        for(String[] row : group) {
+            if((key + STRIPES_SUFFIX).equals(row[0]) && parseStripeCount(row[1]) > 0) {
+                striped = true;
+            }
+        }
+        if(striped) {
+            String value = mergeRows(key, group).value;
+            if(value == null)
+                return 0;
+            callback.row(key, value);
+            return 1;
+        }
+        for(String[] row : group) {
+            callback.row(row[0], row[1]);
+        }
+        return group.size();
+    }
+
+    /**
+     * @return the key a shard or "#stripes" row belongs to, the key itself for other rows
+     */
+    private static String baseKey(String rowKey) {
+        int hash = rowKey.lastIndexOf('#');
+        if(hash < 0) {
+            return rowKey;
+        }
+        String base = rowKey.substring(0, hash);
+        if(rowKey.endsWith(STRIPES_SUFFIX) || isShardKey(base, rowKey)) {
+            return base;
+        }
+        return rowKey;
+    }
+
+    /**
+     * Two index lookups for the count, version sum and highest seq of the key and its shards, see
+     * {@link SqlDialect#selectKeySummarySql(String)}. Changes with every committed write, also of a row deleted
+     * and created again.
+     */
+    public String getChangeToken(String key) throws SQLException {
+        PreparedStatement preparedStatement = prepare(this.dialect.selectKeySummarySql(this.table));
+        try {
+            preparedStatement.setString(1, key);
+            preparedStatement.setString(2, SqlDialect.likePrefix(key + "#"));
+            return readSummary(preparedStatement);
+        } finally {
+            release(preparedStatement);
+        }
+    }
+
+    /**
+     * Same as {@link #getChangeToken(String)} for every key starting with the prefix, with one range scan.
+     */
+    public String getPrefixChangeToken(String prefix) throws SQLException {
+        PreparedStatement preparedStatement = prepare(this.dialect.selectRangeSummarySql(this.table));
+        try {
+            preparedStatement.setString(1, SqlDialect.likePrefix(prefix));
+            return readSummary(preparedStatement);
+        } finally {
+            release(preparedStatement);
+        }
+    }
+
+    private static String readSummary(PreparedStatement preparedStatement) throws SQLException {
+        try(ResultSet resultSet = preparedStatement.executeQuery()) {
+            if(!resultSet.next()) {
+                return "0:0:0";
+            }
+            return resultSet.getLong(1) + ":" + resultSet.getLong(2) + ":" + resultSet.getLong(3);
+        }
+    }
+
+    private static boolean isShardKey(String key, String rowKey) {
+        int prefixLength = key.length() + 1;
+        if(rowKey.length() <= prefixLength || !rowKey.startsWith(key) || rowKey.charAt(key.length()) != '#') {
+            return false;
+        }
+        for(int i=prefixLength; i<rowKey.length(); i++) {
+            if(!Character.isDigit(rowKey.charAt(i)))
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * Reads many keys with IN (...) queries of up to {@value #MAX_IN_PARAMS} keys each.
+     * Every key's "#stripes" row is fetched in the same queries, and only striped counters need an extra read.
+     *
+     * @return found keys only
+     */
+    public Map<String, String> getAll(Collection<String> keys) throws SQLException {
+        Set<String> requested = new LinkedHashSet<>(keys);
+        Set<String> lookupKeys = new LinkedHashSet<>(requested);
+        for(String key : requested) {
+            lookupKeys.add(key + STRIPES_SUFFIX);
+        }
+        Map<String, String> rows = getRows(lookupKeys);
+
+        Map<String, String> result = new HashMap<>();
+        for(String key : requested) {
+            if(parseStripeCount(rows.get(key + STRIPES_SUFFIX)) > 0) {
+                String value = get(key);
+                if(value != null)
+                    result.put(key, value);
+            }else if(rows.containsKey(key)) {
+                result.put(key, rows.get(key));
+            }
+        }
+        return result;
+    }
+
+    private Map<String, String> getRows(Collection<String> keys) throws SQLException {
+        Map<String, String> result = new HashMap<>();
+        List<String> keyList = new ArrayList<>(keys);
+        for(int offset = 0; offset < keyList.size(); offset += MAX_IN_PARAMS) {
+            List<String> chunk = keyList.subList(offset, Math.min(offset + MAX_IN_PARAMS, keyList.size()));
+            PreparedStatement preparedStatement = prepare(this.dialect.selectValuesSql(this.table, chunk.size()));
+            try {
+                for(int i=0; i<chunk.size(); i++) {
+                    preparedStatement.setString(i + 1, chunk.get(i));
+                }
+                preparedStatement.setFetchSize(chunk.size());
+                try(ResultSet resultSet = preparedStatement.executeQuery()) {
+                    while(resultSet.next()) {
+                        result.put(resultSet.getString(1), resultSet.getString(2));
+                    }
+                }
+            } finally {
+                release(preparedStatement);
+            }
+        }
+        return result;
+    }
+}
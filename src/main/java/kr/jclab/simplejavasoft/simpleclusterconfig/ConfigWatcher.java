@@ -0,0 +1,128 @@
+package kr.jclab.simplejavasoft.simpleclusterconfig;
+
+import kr.jclab.simplejavasoft.simpleclusterconfig.dialect.ChangeListener;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.List;
+
+/**
+ * Waits for a key or a key prefix to change, on one connection.
+ *
+ * Every check is one indexed query for the rows' count, version sum and highest seq. Between checks the watcher
+ * blocks on the dialect's change notifications if there are any, otherwise it sleeps with a backoff
+ * that doubles from the minimum to the maximum interval while nothing changes.
+ *
+ * Without notifications these still see every change: updates raise the version sum, and a row deleted
+ * and created again (by any client) gets a higher seq from the table's sequence. A notification for a
+ * watched key always counts as a change; it may report a change that was already seen.
+ */
+public class ConfigWatcher {
+    private final ConfigStore store;
+    private final String target;
+    private final boolean prefix;
+    private long minIntervalMillis = 100;
+    private long maxIntervalMillis = 5000;
+    private ChangeListener changeListener = null;
+    private String token = null;
+
+    /**
+     * @param prefix true to watch every key starting with target
+     */
+    public ConfigWatcher(ConfigStore store, String target, boolean prefix) {
+        this.store = store;
+        this.target = target;
+        this.prefix = prefix;
+    }
+
+    public void setMinIntervalMillis(long minIntervalMillis) {
+        this.minIntervalMillis = Math.max(1, minIntervalMillis);
+    }
+
+    /**
+     * Also the longest wait for a notification before checking anyway.
+     */
+    public void setMaxIntervalMillis(long maxIntervalMillis) {
+        this.maxIntervalMillis = maxIntervalMillis;
+    }
+
+    /**
+     * Takes the current state as the one to wait for changes from, and subscribes to notifications.
+     */
+    public void start() throws SQLException {
+        this.store.useAutoCommit(Connection.TRANSACTION_READ_COMMITTED);
+        this.changeListener = this.store.getDialect().openChangeListener(this.store.getConnection(), this.store.getTable());
+        // Read after subscribing, so a change in between is not lost
+        this.token = readToken();
+    }
+
+    /**
+     * Blocks until the watched rows differ from the last state seen.
+     *
+     * @param timeoutMillis 0 to wait without a limit
+     * @return true on a change, false on timeout
+     */
+    public boolean await(long timeoutMillis) throws SQLException, InterruptedException {
+        long deadline = (timeoutMillis > 0) ? System.currentTimeMillis() + timeoutMillis : Long.MAX_VALUE;
+        long interval = this.minIntervalMillis;
+        while(true) {
+            long remaining = deadline - System.currentTimeMillis();
+            if(remaining <= 0) {
+                return false;
+            }
+            boolean notified = false;
+            if(this.changeListener != null) {
+                notified = waitForNotification(Math.min(this.maxIntervalMillis, remaining));
+            }else{
+                Thread.sleep(Math.min(interval, remaining));
+                interval = Math.min(interval * 2, Math.max(this.minIntervalMillis, this.maxIntervalMillis));
+            }
+            String current = readToken();
+            if(notified || !current.equals(this.token)) {
+                this.token = current;
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Returns when a notification for a watched key arrives, or after the timeout.
+     *
+     * @return true if a watched key was notified
+     */
+    private boolean waitForNotification(long timeoutMillis) throws SQLException {
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        long remaining = timeoutMillis;
+        while(remaining > 0) {
+            List<String> keys = this.changeListener.await(remaining);
+            for(String key : keys) {
+                if(isWatched(key))
+                    return true;
+            }
+            remaining = deadline - System.currentTimeMillis();
+        }
+        return false;
+    }
+
+    private boolean isWatched(String key) {
+        if(key == null) {
+            return true;
+        }
+        if(this.prefix) {
+            return key.startsWith(this.target);
+        }
+        return key.equals(this.target) || key.startsWith(this.target + "#");
+    }
+
+    private String readToken() throws SQLException {
+        this.store.useAutoCommit(Connection.TRANSACTION_READ_COMMITTED);
+        return this.prefix ? this.store.getPrefixChangeToken(this.target) : this.store.getChangeToken(this.target);
+    }
+
+    public void close() throws SQLException {
+        if(this.changeListener != null) {
+            this.changeListener.close();
+            this.changeListener = null;
+        }
+    }
+}
@@ -0,0 +1,45 @@
+package kr.jclab.simplejavasoft.simpleclusterconfig;
+
+import java.sql.SQLException;
+
+/**
+ * Hands out ids from a block reserved on a counter, and only goes back to the database
+ * once the block is used up. Ids left in a block when the process exits are skipped.
+ */
+public class IdAllocator {
+    public interface BlockSource {
+        /**
+         * @return the reserved range {first, last}, both inclusive
+         */
+        long[] reserve(String key, long count) throws SQLException;
+    }
+
+    private final BlockSource source;
+    private final String key;
+    private final long blockSize;
+
+    private long next = 1;
+    private long last = 0;
+
+    public IdAllocator(BlockSource source, String key, long blockSize) {
+        if(blockSize <= 0) {
+            throw new IllegalArgumentException("Block size must be positive: " + blockSize);
+        }
+        this.source = source;
+        this.key = key;
+        this.blockSize = blockSize;
+    }
+
+    public synchronized long next() throws SQLException {
+        if(this.next > this.last) {
+            long[] range = this.source.reserve(this.key, this.blockSize);
+            this.next = range[0];
+            this.last = range[1];
+        }
+        return this.next++;
+    }
+
+    public String getKey() {
+        return key;
+    }
+}
@@ -0,0 +1,131 @@
+package kr.jclab.simplejavasoft.simpleclusterconfig;
+
+import java.sql.SQLException;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.concurrent.Semaphore;
+
+/**
+ * Keeps released resources (connections) for reuse. At most maxSize are borrowed at once, and idle
+ * ones are closed after idleTimeoutMillis, when the next borrow or {@link #evictIdle()} finds them.
+ */
+public abstract class IdlePool<T> implements AutoCloseable {
+    private final Semaphore permits;
+    private final Deque<Idle<T>> idle = new ArrayDeque<>();
+    private volatile long idleTimeoutMillis;
+    private boolean closed = false;
+
+    protected IdlePool(int maxSize, long idleTimeoutMillis) {
+        this.permits = new Semaphore(maxSize, true);
+        this.idleTimeoutMillis = idleTimeoutMillis;
+    }
+
+    /**
+     * Opens a new resource when none is idle.
+     */
+    protected abstract T open() throws SQLException;
+
+    /**
+     * Closes a resource, ignoring errors.
+     */
+    protected abstract void dispose(T resource);
+
+    /**
+     * Waits for a free permit, reusing the most recently released resource.
+     */
+    public T borrow() throws SQLException, InterruptedException {
+        this.permits.acquire();
+        try {
+            evictIdle();
+            synchronized (this) {
+                if(this.closed)
+                    throw new SQLException("Pool is closed");
+                Idle<T> entry = this.idle.pollFirst();
+                if(entry != null)
+                    return entry.resource;
+            }
+            return open();
+        } catch (SQLException | RuntimeException e) {
+            this.permits.release();
+            throw e;
+        }
+    }
+
+    /**
+     * @param broken true if the resource failed and must not be reused
+     */
+    public void release(T resource, boolean broken) {
+        try {
+            boolean keep = !broken;
+            synchronized (this) {
+                if(keep && !this.closed) {
+                    this.idle.addFirst(new Idle<>(resource, System.currentTimeMillis()));
+                }else{
+                    keep = false;
+                }
+            }
+            if(!keep) {
+                dispose(resource);
+            }
+        } finally {
+            this.permits.release();
+        }
+    }
+
+    /**
+     * Closes resources that have been idle for longer than the idle timeout.
+     */
+    public void evictIdle() {
+        long deadline = System.currentTimeMillis() - this.idleTimeoutMillis;
+        Deque<T> expired = new ArrayDeque<>();
+        synchronized (this) {
+            // Oldest resources are at the tail
+            Iterator<Idle<T>> iterator = this.idle.descendingIterator();
+            while(iterator.hasNext()) {
+                Idle<T> entry = iterator.next();
+                if(entry.releasedAt > deadline)
+                    break;
+                iterator.remove();
+                expired.add(entry.resource);
+            }
+        }
+        for(T resource : expired) {
+            dispose(resource);
+        }
+    }
+
+    public long getIdleTimeoutMillis() {
+        return idleTimeoutMillis;
+    }
+
+    public void setIdleTimeoutMillis(long idleTimeoutMillis) {
+        this.idleTimeoutMillis = idleTimeoutMillis;
+    }
+
+    /**
+     * Closes the idle resources. Borrowed ones are closed when they are released.
+     */
+    @Override
+    public void close() {
+        Deque<Idle<T>> remaining;
+        synchronized (this) {
+            this.closed = true;
+            remaining = new ArrayDeque<>(this.idle);
+            this.idle.clear();
+        }
+        for(Idle<T> entry : remaining) {
+            dispose(entry.resource);
+        }
+    }
+
+    private static class Idle<T> {
+        final T resource;
+        final long releasedAt;
+
+        Idle(T resource, long releasedAt) {
+            this.resource = resource;
+            this.releasedAt = releasedAt;
+        }
+    }
+}
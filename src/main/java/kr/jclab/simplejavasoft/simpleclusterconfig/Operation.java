@@ -0,0 +1,169 @@
+package kr.jclab.simplejavasoft.simpleclusterconfig;
+
+public class Operation {
+    public enum Type {
+        GET(false, false, true),
+        /** Reads "version value", for a later compare-and-set. */
+        GETV(false, false, false),
+        SET(true, false, true),
+        INCREMENT(true, true, true),
+        DECREMENT(true, true, true),
+        /** Advances a counter by the value and returns the allocated range as "first last". */
+        RESERVE(true, true, false),
+        /** Returns one id. The daemon hands these out from a locally reserved block. */
+        NEXT_ID(true, false, false),
+        /** Sets the number of shard rows a counter is striped over. */
+        STRIPE(true, true, false),
+        /** Sets the value only if the row still has the expected version (0: the key must not exist). */
+        CAS(true, false, false);
+
+        private final boolean write;
+        private final boolean numeric;
+        private final boolean batchable;
+
+        Type(boolean write, boolean numeric, boolean batchable) {
+            this.write = write;
+            this.numeric = numeric;
+            this.batchable = batchable;
+        }
+
+        public boolean isWrite() {
+            return write;
+        }
+
+        /**
+         * @return true if the value is an integer amount, 1 when omitted
+         */
+        public boolean isNumeric() {
+            return numeric;
+        }
+
+        /**
+         * @return true if the result is the key's value, so it can be read back after the batch's writes
+         *         (and a write can go into a JDBC batch)
+         */
+        public boolean isBatchable() {
+            return batchable;
+        }
+
+        /**
+         * @return null if the name is not a known operation
+         */
+        public static Type fromName(String name) {
+            if(name == null)
+                return null;
+            switch (name.toLowerCase()) {
+                case "get":
+                    return GET;
+                case "getv":
+                    return GETV;
+                case "set":
+                    return SET;
+                case "inc":
+                case "increment":
+                    return INCREMENT;
+                case "dec":
+                case "decrement":
+                    return DECREMENT;
+                case "reserve":
+                    return RESERVE;
+                case "next-id":
+                    return NEXT_ID;
+                case "stripe":
+                    return STRIPE;
+                case "cas":
+                    return CAS;
+                default:
+                    return null;
+            }
+        }
+    }
+
+    private final Type type;
+    private final String key;
+    private final String value;
+    private final long expectedVersion;
+
+    public Operation(Type type, String key, String value) {
+        this(type, key, value, -1);
+    }
+
+    /**
+     * @param expectedVersion version a {@link Type#CAS} expects, -1 for other operations
+     */
+    public Operation(Type type, String key, String value, long expectedVersion) {
+        this.type = type;
+        this.key = key;
+        if(value == null && type.isNumeric()) {
+            this.value = "1";
+        }else{
+            this.value = value;
+        }
+        this.expectedVersion = expectedVersion;
+    }
+
+    /**
+     * Parses one line of the form "&lt;op&gt; &lt;key&gt; [value]". The value is the rest of the line.
+     * A compare-and-set is "cas &lt;key&gt; &lt;expected version&gt; &lt;value&gt;".
+     *
+     * @return null for blank lines and lines starting with '#'
+     * @throws IllegalArgumentException if the line is not a valid operation
+     */
+    public static Operation parse(String line) {
+        String trimmed = line.trim();
+        if(trimmed.isEmpty() || trimmed.startsWith("#")) {
+            return null;
+        }
+        String[] tokens = trimmed.split("\\s+", 3);
+        Type type = Type.fromName(tokens[0]);
+        if(type == null) {
+            throw new IllegalArgumentException("Unknown operation: " + tokens[0]);
+        }
+        if(tokens.length < 2) {
+            throw new IllegalArgumentException("Need key: " + trimmed);
+        }
+        if(type == Type.CAS) {
+            String[] casTokens = trimmed.split("\\s+", 4);
+            if(casTokens.length < 4) {
+                throw new IllegalArgumentException("Need version and value: " + trimmed);
+            }
+            try {
+                return new Operation(type, casTokens[1], casTokens[3], Long.parseLong(casTokens[2]));
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("Not a version: " + trimmed);
+            }
+        }
+        String value = (tokens.length > 2) ? tokens[2] : null;
+        if(type == Type.SET && value == null) {
+            throw new IllegalArgumentException("Need value: " + trimmed);
+        }
+        if(type.isNumeric() && value != null) {
+            long amount;
+            try {
+                amount = Long.parseLong(value);
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("Not an integer: " + trimmed);
+            }
+            if((type == Type.RESERVE || type == Type.STRIPE) && amount <= 0) {
+                throw new IllegalArgumentException("Count must be positive: " + trimmed);
+            }
+        }
+        return new Operation(type, tokens[1], value);
+    }
+
+    public Type getType() {
+        return type;
+    }
+
+    public String getKey() {
+        return key;
+    }
+
+    public String getValue() {
+        return value;
+    }
+
+    public long getExpectedVersion() {
+        return expectedVersion;
+    }
+}
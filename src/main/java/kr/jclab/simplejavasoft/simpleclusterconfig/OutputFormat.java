@@ -0,0 +1,155 @@
+package kr.jclab.simplejavasoft.simpleclusterconfig;
+
+import java.io.PrintStream;
+
+/**
+ * Line formats for mget, list and export output.
+ */
+public enum OutputFormat {
+    /** key=value, with backslash, CR and LF escaped so every key is one line */
+    KV {
+        @Override
+        public void write(PrintStream out, String key, String value) {
+            out.print(key);
+            out.print('=');
+            out.println((value != null) ? value.replace("\\", "\\\\").replace("\n", "\\n").replace("\r", "\\r") : "");
+        }
+    },
+    /** KEY_NAME='value', can be sourced by a shell */
+    ENV {
+        @Override
+        public void write(PrintStream out, String key, String value) {
+            out.print(envName(key));
+            out.print('=');
+            out.println(shellQuote((value != null) ? value : ""));
+        }
+    },
+    /** {"key":"...","value":"..."} */
+    JSON {
+        @Override
+        public void write(PrintStream out, String key, String value) {
+            StringBuilder line = new StringBuilder();
+            line.append("{\"key\":");
+            appendJsonString(line, key);
+            line.append(",\"value\":");
+            if(value != null) {
+                appendJsonString(line, value);
+            }else{
+                line.append("null");
+            }
+            line.append('}');
+            out.println(line);
+        }
+    },
+    /** key,value as in RFC 4180, an empty unquoted value is null and "" is the empty string */
+    CSV {
+        @Override
+        public void write(PrintStream out, String key, String value) {
+            StringBuilder line = new StringBuilder();
+            appendCsvField(line, key);
+            line.append(',');
+            if(value != null) {
+                if(value.isEmpty()) {
+                    line.append("\"\"");
+                }else{
+                    appendCsvField(line, value);
+                }
+            }
+            line.append("\r\n");
+            out.print(line);
+        }
+    };
+
+    public abstract void write(PrintStream out, String key, String value);
+
+    public static OutputFormat fromName(String name) {
+        switch (name.toLowerCase()) {
+            case "kv":
+                return KV;
+            case "env":
+                return ENV;
+            case "json":
+            case "jsonl":
+                return JSON;
+            case "csv":
+                return CSV;
+            default:
+                throw new IllegalArgumentException("Unknown output format: " + name);
+        }
+    }
+
+    /**
+     * "cluster.node-1.port" becomes "CLUSTER_NODE_1_PORT".
+     */
+    static String envName(String key) {
+        StringBuilder name = new StringBuilder(key.length() + 1);
+        if(key.isEmpty() || Character.isDigit(key.charAt(0))) {
+            name.append('_');
+        }
+        for(int i=0; i<key.length(); i++) {
+            char c = key.charAt(i);
+            if((c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9')) {
+                name.append(Character.toUpperCase(c));
+            }else{
+                name.append('_');
+            }
+        }
+        return name.toString();
+    }
+
+    private static String shellQuote(String value) {
+        boolean plain = !value.isEmpty();
+        for(int i=0; i<value.length() && plain; i++) {
+            char c = value.charAt(i);
+            plain = (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9') || "_-.,:/@%+".indexOf(c) >= 0;
+        }
+        if(plain) {
+            return value;
+        }
+        return "'" + value.replace("'", "'\\''") + "'";
+    }
+
+    private static void appendCsvField(StringBuilder out, String value) {
+        boolean quote = false;
+        for(int i=0; i<value.length() && !quote; i++) {
+            char c = value.charAt(i);
+            quote = (c == ',' || c == '"' || c == '\r' || c == '\n');
+        }
+        if(quote) {
+            out.append('"').append(value.replace("\"", "\"\"")).append('"');
+        }else{
+            out.append(value);
+        }
+    }
+
+    private static void appendJsonString(StringBuilder out, String value) {
+        out.append('"');
+        for(int i=0; i<value.length(); i++) {
+            char c = value.charAt(i);
+            switch (c) {
+                case '"':
+                    out.append("\\\"");
+                    break;
+                case '\\':
+                    out.append("\\\\");
+                    break;
+                case '\n':
+                    out.append("\\n");
+                    break;
+                case '\r':
+                    out.append("\\r");
+                    break;
+                case '\t':
+                    out.append("\\t");
+                    break;
+                default:
+                    if(c < 0x20) {
+                        out.append(String.format("\\u%04x", (int) c));
+                    }else{
+                        out.append(c);
+                    }
+            }
+        }
+        out.append('"');
+    }
+}
@@ -0,0 +1,121 @@
+package kr.jclab.simplejavasoft.simpleclusterconfig;
+
+import kr.jclab.simplejavasoft.simpleclusterconfig.dialect.SqlDialect;
+import kr.jclab.simplejavasoft.simpleclusterconfig.metrics.Metrics;
+
+import java.sql.*;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Creates and checks the config table. Normal operations never issue DDL.
+ * A table found once is remembered for the life of the process.
+ */
+public final class SchemaManager {
+    private static final Set<String> verifiedTables = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+    private SchemaManager() {
+    }
+
+    /**
+     * Creates the table unless the metadata shows it already exists.
+     * A table from before versioning gets its version and seq columns added, and the dialect's change
+     * notification trigger is (re)installed.
+     */
+    public static void initSchema(Connection connection, SqlDialect dialect, String table) throws SQLException {
+        if(isVerified(connection, table)) {
+            return ;
+        }
+        long started = Metrics.start();
+        try(Statement statement = connection.createStatement()) {
+            if(!tableExists(connection, table)) {
+                for(String sql : dialect.createSequenceSql(table)) {
+                    statement.execute(sql);
+                }
+                statement.execute(dialect.createTableSql(table));
+            }else{
+                if(!columnExists(connection, table, "version")) {
+                    statement.execute(dialect.addVersionColumnSql(table));
+                }
+                if(!columnExists(connection, table, "seq")) {
+                    for(String sql : dialect.createSequenceSql(table)) {
+                        statement.execute(sql);
+                    }
+                    statement.execute(dialect.addSeqColumnSql(table));
+                }
+            }
+            for(String sql : dialect.changeNotificationSql(table)) {
+                statement.execute(sql);
+            }
+        }
+        if(!connection.getAutoCommit()) {
+            connection.commit();
+        }
+        markVerified(connection, table);
+        Metrics.stop("schema.init", started);
+    }
+
+    /**
+     * Checks the table once per process.
+     *
+     * @throws SQLException if the table does not exist or is from before versioning or the seq column
+     */
+    public static void checkTable(Connection connection, String table) throws SQLException {
+        if(isVerified(connection, table)) {
+            return ;
+        }
+        long started = Metrics.start();
+        boolean exists = tableExists(connection, table);
+        boolean versioned = exists && columnExists(connection, table, "version");
+        boolean sequenced = versioned && columnExists(connection, table, "seq");
+        Metrics.stop("schema.check", started);
+        if(!exists) {
+            throw new SQLException("Table " + table + " does not exist, run --op=init-schema first", "42S02");
+        }
+        if(!versioned) {
+            throw new SQLException("Table " + table + " has no version column, run --op=init-schema to add it", "42S22");
+        }
+        if(!sequenced) {
+            throw new SQLException("Table " + table + " has no seq column, run --op=init-schema to add it", "42S22");
+        }
+        markVerified(connection, table);
+    }
+
+    public static boolean tableExists(Connection connection, String table) throws SQLException {
+        DatabaseMetaData metaData = connection.getMetaData();
+        // Identifiers may be stored folded to one case, so try the name as given and both foldings
+        for(String name : new String[] { table, table.toLowerCase(), table.toUpperCase() }) {
+            try(ResultSet resultSet = metaData.getTables(connection.getCatalog(), null, name, new String[] { "TABLE" })) {
+                while(resultSet.next()) {
+                    if(table.equalsIgnoreCase(resultSet.getString("TABLE_NAME"))) {
+                        return true;
+                    }
+                }
+            }
+        }
+        return false;
+    }
+
+    private static boolean columnExists(Connection connection, String table, String column) throws SQLException {
+        DatabaseMetaData metaData = connection.getMetaData();
+        for(String name : new String[] { table, table.toLowerCase(), table.toUpperCase() }) {
+            try(ResultSet resultSet = metaData.getColumns(connection.getCatalog(), null, name, null)) {
+                while(resultSet.next()) {
+                    if(table.equalsIgnoreCase(resultSet.getString("TABLE_NAME")) && column.equalsIgnoreCase(resultSet.getString("COLUMN_NAME"))) {
+                        return true;
+                    }
+                }
+            }
+        }
+        return false;
+    }
+
+    private static boolean isVerified(Connection connection, String table) throws SQLException {
+        return verifiedTables.contains(connection.getMetaData().getURL() + "|" + table);
+    }
+
+    private static void markVerified(Connection connection, String table) throws SQLException {
+        verifiedTables.add(connection.getMetaData().getURL() + "|" + table);
+    }
+}
@@ -1,15 +1,75 @@
 package kr.jclab.simplejavasoft.simpleclusterconfig;
 
+import kr.jclab.simplejavasoft.simpleclusterconfig.daemon.ConfigDaemon;
+import kr.jclab.simplejavasoft.simpleclusterconfig.daemon.ConnectionPool;
+import kr.jclab.simplejavasoft.simpleclusterconfig.daemon.DaemonClient;
+import kr.jclab.simplejavasoft.simpleclusterconfig.daemon.DaemonProtocol;
+import kr.jclab.simplejavasoft.simpleclusterconfig.daemon.MetricsEndpoint;
+import kr.jclab.simplejavasoft.simpleclusterconfig.dialect.SqlDialect;
+import kr.jclab.simplejavasoft.simpleclusterconfig.metrics.Metrics;
 import kr.jclab.simplejavasoft.simpleclusterconfig.modulemanager.ModuleManager;
 
-import java.io.File;
+import java.io.*;
 import java.sql.*;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 
 public class SimpleClusterConfig {
     private String jbossModulePath = null;
+    private String moduleCachePath = null;
+    private String indexCacheDir = null;
+    private int scanThreads = 0;
     private String key = null;
+    private final List<String> keys = new ArrayList<>();
+    private String prefix = null;
+    private boolean follow = false;
+    private long watchTimeout = 0;
+    private long pollMinInterval = 100;
+    private long pollMaxInterval = 5000;
+    private OutputFormat outputFormat = OutputFormat.KV;
+    private boolean formatGiven = false;
     private String value = null;
     private String operation = null;
+    private long expectVersion = -1;
+    private boolean optimistic = false;
+    private int maxRetries = 5;
+    private boolean batch = false;
+    private String batchFile = null;
+    private BatchRunner.CommitPolicy batchCommitPolicy = BatchRunner.CommitPolicy.ALL;
+
+    private boolean daemon = false;
+    private boolean client = false;
+    private String daemonHost = DaemonProtocol.DEFAULT_HOST;
+    private int daemonPort = DaemonProtocol.DEFAULT_PORT;
+    private int daemonThreads = 16;
+    private int daemonIdleTimeout = 60;
+    private int poolSize = 4;
+    private int poolIdleTimeout = 300;
+    private long idBlockSize = 100;
+    private ConfigStore.StripeSelection stripeSelection = ConfigStore.StripeSelection.RANDOM;
+
+    private String snapshotPath = null;
+    private boolean readThroughCache = false;
+    private long snapshotMaxAge = 60;
+    private int connectTimeout = 0;
+
+    private boolean timings = false;
+    private String metricsFile = null;
+    private int metricsPort = 0;
+    private boolean metricsReported = false;
+
+    private String importFile = null;
+    private int importBatchSize = 500;
+    private int importCommitRows = 5000;
+    private boolean multiRow = false;
+    private boolean rawRows = false;
+    private String resumePath = null;
+
+    private String dumpCdsPath = null;
+    private String useCdsPath = null;
+    private String[] args = null;
 
     private String dbDriver;
     private String dbUser;
@@ -17,6 +77,8 @@ public class SimpleClusterConfig {
     private String dbUrl;
 
     private String table;
+    private String dialectName = null;
+    private SqlDialect dialect;
 
     private int exitCode = 10;
 
@@ -37,6 +99,7 @@ public class SimpleClusterConfig {
     }
 
     public boolean parseArgs(String[] args) {
+        this.args = args;
         ArgInfo[] argInfos = new ArgInfo[] {
                 new ArgInfo("modpath", true, new ArgInfo.Handler() {
                     @Override
@@ -44,22 +107,132 @@ public class SimpleClusterConfig {
                         jbossModulePath = value;
                     }
                 }),
+                new ArgInfo("module-cache", true, new ArgInfo.Handler() {
+                    @Override
+                    public void input(String value) {
+                        moduleCachePath = value;
+                    }
+                }),
+                new ArgInfo("index-cache-dir", true, new ArgInfo.Handler() {
+                    @Override
+                    public void input(String value) {
+                        indexCacheDir = value;
+                    }
+                }),
+                new ArgInfo("scan-threads", true, new ArgInfo.Handler() {
+                    @Override
+                    public void input(String value) {
+                        scanThreads = Integer.parseInt(value);
+                    }
+                }),
                 new ArgInfo("table", true, new ArgInfo.Handler() {
                     @Override
                     public void input(String value) {
                         table = value;
                     }
                 }),
+                new ArgInfo("dialect", true, new ArgInfo.Handler() {
+                    @Override
+                    public void input(String value) {
+                        dialectName = value;
+                    }
+                }),
                 new ArgInfo("key", true, new ArgInfo.Handler() {
                     @Override
                     public void input(String value) {
                         key = value;
+                        keys.add(value);
+                    }
+                }),
+                new ArgInfo("prefix", true, new ArgInfo.Handler() {
+                    @Override
+                    public void input(String value) {
+                        prefix = value;
+                    }
+                }),
+                new ArgInfo("follow", false, new ArgInfo.Handler() {
+                    @Override
+                    public void input(String value) {
+                        follow = true;
+                    }
+                }),
+                new ArgInfo("watch-timeout", true, new ArgInfo.Handler() {
+                    @Override
+                    public void input(String value) {
+                        watchTimeout = Long.parseLong(value);
+                    }
+                }),
+                new ArgInfo("poll-min-interval", true, new ArgInfo.Handler() {
+                    @Override
+                    public void input(String value) {
+                        pollMinInterval = Long.parseLong(value);
+                    }
+                }),
+                new ArgInfo("poll-max-interval", true, new ArgInfo.Handler() {
+                    @Override
+                    public void input(String value) {
+                        pollMaxInterval = Long.parseLong(value);
+                    }
+                }),
+                new ArgInfo("snapshot", true, new ArgInfo.Handler() {
+                    @Override
+                    public void input(String value) {
+                        snapshotPath = value;
+                    }
+                }),
+                new ArgInfo("read-through-cache", false, new ArgInfo.Handler() {
+                    @Override
+                    public void input(String value) {
+                        readThroughCache = true;
+                    }
+                }),
+                new ArgInfo("snapshot-max-age", true, new ArgInfo.Handler() {
+                    @Override
+                    public void input(String value) {
+                        snapshotMaxAge = Long.parseLong(value);
+                    }
+                }),
+                new ArgInfo("connect-timeout", true, new ArgInfo.Handler() {
+                    @Override
+                    public void input(String value) {
+                        connectTimeout = Integer.parseInt(value);
+                    }
+                }),
+                new ArgInfo("format", true, new ArgInfo.Handler() {
+                    @Override
+                    public void input(String value) {
+                        outputFormat = OutputFormat.fromName(value);
+                        formatGiven = true;
                     }
                 }),
                 new ArgInfo("value", true, new ArgInfo.Handler() {
                     @Override
                     public void input(String value) {
-                        value = value;
+                        SimpleClusterConfig.this.value = value;
+                    }
+                }),
+                new ArgInfo("count", true, new ArgInfo.Handler() {
+                    @Override
+                    public void input(String value) {
+                        SimpleClusterConfig.this.value = value;
+                    }
+                }),
+                new ArgInfo("expect-version", true, new ArgInfo.Handler() {
+                    @Override
+                    public void input(String value) {
+                        expectVersion = Long.parseLong(value);
+                    }
+                }),
+                new ArgInfo("optimistic", false, new ArgInfo.Handler() {
+                    @Override
+                    public void input(String value) {
+                        optimistic = true;
+                    }
+                }),
+                new ArgInfo("retries", true, new ArgInfo.Handler() {
+                    @Override
+                    public void input(String value) {
+                        maxRetries = Integer.parseInt(value);
                     }
                 }),
                 new ArgInfo("op", true, new ArgInfo.Handler() {
@@ -68,12 +241,159 @@ public class SimpleClusterConfig {
                         operation = value;
                     }
                 }),
+                new ArgInfo("batch", false, new ArgInfo.Handler() {
+                    @Override
+                    public void input(String value) {
+                        batch = true;
+                    }
+                }),
+                new ArgInfo("batch-file", true, new ArgInfo.Handler() {
+                    @Override
+                    public void input(String value) {
+                        batch = true;
+                        batchFile = value;
+                    }
+                }),
+                new ArgInfo("batch-commit", true, new ArgInfo.Handler() {
+                    @Override
+                    public void input(String value) {
+                        batchCommitPolicy = BatchRunner.CommitPolicy.valueOf(value.toUpperCase());
+                    }
+                }),
+                new ArgInfo("daemon", false, new ArgInfo.Handler() {
+                    @Override
+                    public void input(String value) {
+                        daemon = true;
+                    }
+                }),
+                new ArgInfo("client", false, new ArgInfo.Handler() {
+                    @Override
+                    public void input(String value) {
+                        client = true;
+                    }
+                }),
+                new ArgInfo("daemon-host", true, new ArgInfo.Handler() {
+                    @Override
+                    public void input(String value) {
+                        daemonHost = value;
+                    }
+                }),
+                new ArgInfo("daemon-port", true, new ArgInfo.Handler() {
+                    @Override
+                    public void input(String value) {
+                        daemonPort = Integer.parseInt(value);
+                    }
+                }),
+                new ArgInfo("daemon-threads", true, new ArgInfo.Handler() {
+                    @Override
+                    public void input(String value) {
+                        daemonThreads = Integer.parseInt(value);
+                    }
+                }),
+                new ArgInfo("daemon-idle-timeout", true, new ArgInfo.Handler() {
+                    @Override
+                    public void input(String value) {
+                        daemonIdleTimeout = Integer.parseInt(value);
+                    }
+                }),
+                new ArgInfo("pool-size", true, new ArgInfo.Handler() {
+                    @Override
+                    public void input(String value) {
+                        poolSize = Integer.parseInt(value);
+                    }
+                }),
+                new ArgInfo("pool-idle-timeout", true, new ArgInfo.Handler() {
+                    @Override
+                    public void input(String value) {
+                        poolIdleTimeout = Integer.parseInt(value);
+                    }
+                }),
+                new ArgInfo("stripe-select", true, new ArgInfo.Handler() {
+                    @Override
+                    public void input(String value) {
+                        stripeSelection = ConfigStore.StripeSelection.valueOf(value.toUpperCase());
+                    }
+                }),
+                new ArgInfo("id-block", true, new ArgInfo.Handler() {
+                    @Override
+                    public void input(String value) {
+                        idBlockSize = Long.parseLong(value);
+                    }
+                }),
+                new ArgInfo("timings", false, new ArgInfo.Handler() {
+                    @Override
+                    public void input(String value) {
+                        timings = true;
+                    }
+                }),
+                new ArgInfo("metrics-file", true, new ArgInfo.Handler() {
+                    @Override
+                    public void input(String value) {
+                        metricsFile = value;
+                    }
+                }),
+                new ArgInfo("metrics-port", true, new ArgInfo.Handler() {
+                    @Override
+                    public void input(String value) {
+                        metricsPort = Integer.parseInt(value);
+                    }
+                }),
+                new ArgInfo("input", true, new ArgInfo.Handler() {
+                    @Override
+                    public void input(String value) {
+                        importFile = value;
+                    }
+                }),
+                new ArgInfo("batch-size", true, new ArgInfo.Handler() {
+                    @Override
+                    public void input(String value) {
+                        importBatchSize = Integer.parseInt(value);
+                    }
+                }),
+                new ArgInfo("commit-every", true, new ArgInfo.Handler() {
+                    @Override
+                    public void input(String value) {
+                        importCommitRows = Integer.parseInt(value);
+                    }
+                }),
+                new ArgInfo("multi-row", false, new ArgInfo.Handler() {
+                    @Override
+                    public void input(String value) {
+                        multiRow = true;
+                    }
+                }),
+                new ArgInfo("raw", false, new ArgInfo.Handler() {
+                    @Override
+                    public void input(String value) {
+                        rawRows = true;
+                    }
+                }),
+                new ArgInfo("resume", true, new ArgInfo.Handler() {
+                    @Override
+                    public void input(String value) {
+                        resumePath = value;
+                    }
+                }),
+                new ArgInfo("dump-cds", true, new ArgInfo.Handler() {
+                    @Override
+                    public void input(String value) {
+                        dumpCdsPath = value;
+                    }
+                }),
+                new ArgInfo("use-cds", true, new ArgInfo.Handler() {
+                    @Override
+                    public void input(String value) {
+                        useCdsPath = value;
+                    }
+                }),
         };
         int argc = args.length;
         for(int i=0; i<argc; i++) {
+            boolean matched = false;
             for(ArgInfo argInfo : argInfos) {
                 if(args[i].startsWith(argInfo.name + "=")) {
                     argInfo.handler.input(args[i].substring(argInfo.name.length() + 1));
+                    matched = true;
                     break;
                 }else if(argInfo.name.equalsIgnoreCase(args[i])) {
                     if(argInfo.hasValue) {
@@ -82,103 +402,566 @@ public class SimpleClusterConfig {
                     }else{
                         argInfo.handler.input(null);
                     }
+                    matched = true;
                     break;
                 }
             }
+            if(!matched && !args[i].startsWith("--")) {
+                // mget keys can follow as plain arguments
+                this.keys.add(args[i]);
+            }
         }
 
         if(this.jbossModulePath == null) {
             this.jbossModulePath = System.getenv("JBOSS_MODULE_PATH");
         }
+        if(this.moduleCachePath == null) {
+            this.moduleCachePath = System.getenv("JBOSS_MODULE_CACHE");
+        }
+        if(this.snapshotPath == null) {
+            this.snapshotPath = System.getenv("CONFIG_SNAPSHOT");
+        }
 
         this.dbDriver = System.getenv("DB_DRIVER");
         this.dbUser = System.getenv("DB_USER");
         this.dbPass = System.getenv("DB_PASSWORD");
         this.dbUrl = System.getenv("DB_URL");
 
-        if(this.operation == null) {
+        if(this.dialectName == null) {
+            this.dialectName = System.getenv("DB_DIALECT");
+        }
+        Metrics.setEnabled(this.timings || this.metricsFile != null || this.metricsPort > 0);
+        this.dialect = (this.dialectName != null) ? SqlDialect.forName(this.dialectName) : SqlDialect.detect(this.dbUrl, this.dbDriver);
+
+        if(this.operation == null && !this.batch && !this.daemon) {
             System.err.println("Need operation");
             return false;
         }
+        boolean bulk = "export".equalsIgnoreCase(this.operation) || "import".equalsIgnoreCase(this.operation);
+        if(bulk && !this.formatGiven) {
+            this.outputFormat = OutputFormat.JSON;
+        }
+        if(bulk && this.outputFormat != OutputFormat.JSON && this.outputFormat != OutputFormat.CSV) {
+            System.err.println(this.operation + " needs --format=json or --format=csv");
+            return false;
+        }
+        if(("mget".equalsIgnoreCase(this.operation) || "list".equalsIgnoreCase(this.operation) || "watch".equalsIgnoreCase(this.operation) || bulk) && this.client) {
+            System.err.println(this.operation + " is not supported by the daemon");
+            return false;
+        }
+        if((this.readThroughCache || "snapshot".equalsIgnoreCase(this.operation)) && this.snapshotPath == null) {
+            System.err.println("Need --snapshot");
+            return false;
+        }
+        if("get".equalsIgnoreCase(this.operation) && !this.batch && !this.daemon && this.key == null) {
+            System.err.println("get needs --key");
+            return false;
+        }
+        if(this.client && this.key == null) {
+            System.err.println(this.operation + " needs --key");
+            return false;
+        }
+        if("watch".equalsIgnoreCase(this.operation) && this.key == null && this.prefix == null) {
+            System.err.println("watch needs --key or --prefix");
+            return false;
+        }
+        if("mget".equalsIgnoreCase(this.operation) && this.keys.isEmpty()) {
+            System.err.println("mget needs keys");
+            return false;
+        }
+        if("cas".equalsIgnoreCase(this.operation) && (this.expectVersion < 0 || this.value == null)) {
+            System.err.println("cas needs --expect-version and --value");
+            return false;
+        }
+        if(this.table == null && !this.client) {
+            System.err.println("Need table");
+            return false;
+        }
 
         return true;
     }
-    public void run() throws ClassNotFoundException, SQLException {
+    private void loadDriver() throws ClassNotFoundException, SQLException {
+        long started = Metrics.start();
         ModuleManager moduleManager = ModuleManager.getInstance();
+        if(this.moduleCachePath != null) {
+            moduleManager.setCacheFile(new File(this.moduleCachePath));
+        }
+        if(this.indexCacheDir != null) {
+            moduleManager.setIndexCacheDir(new File(this.indexCacheDir));
+        }
+        moduleManager.setScanThreads(this.scanThreads);
         moduleManager.start(new File(this.jbossModulePath));
         Class driverClazz = moduleManager.loadModule(this.dbDriver);
-        Connection connection = DriverManager.getConnection(this.dbUrl, this.dbUser, this.dbPass);
-        connection.setAutoCommit(false);
+        Driver driver;
+        try {
+            driver = (Driver) driverClazz.newInstance();
+        } catch (InstantiationException | IllegalAccessException e) {
+            throw new SQLException("Cannot create driver " + this.dbDriver, e);
+        }
+        // The driver lives in a module class loader, which DriverManager does not trust on its own
+        DriverManager.registerDriver(new DriverShim(driver));
+        Metrics.stop("driver.load", started);
+    }
+
+    public void run() throws ClassNotFoundException, SQLException, IOException {
+        long started = Metrics.start();
+        try {
+            runPhases();
+        } finally {
+            Metrics.stop("run", started);
+        }
+    }
+
+    private void runPhases() throws ClassNotFoundException, SQLException, IOException {
+        if(this.dumpCdsPath != null) {
+            runDumpCds();
+            return ;
+        }
+        if(this.useCdsPath != null && !CdsArchive.isFresh(new File(this.useCdsPath))) {
+            System.err.println("[WARN] CDS archive " + this.useCdsPath + " is missing or older than the class path, run --dump-cds again");
+        }
+        if(this.client) {
+            runClient();
+            return ;
+        }
+        if(isCachedGet()) {
+            long snapshotStarted = Metrics.start();
+            boolean hit = printFromSnapshot(false);
+            Metrics.stop("snapshot.read", snapshotStarted);
+            if(hit) {
+                // fresh enough, no driver or connection needed
+                return ;
+            }
+        }
+        Connection connection;
+        try {
+            loadDriver();
+            if(this.daemon) {
+                runDaemon();
+                return ;
+            }
+            if(this.connectTimeout > 0) {
+                DriverManager.setLoginTimeout(this.connectTimeout);
+            }
+            long connectStarted = Metrics.start();
+            connection = DriverManager.getConnection(this.dbUrl, this.dbUser, this.dbPass);
+            Metrics.stop("db.connect", connectStarted);
+        } catch (ClassNotFoundException | SQLException e) {
+            if(isCachedGet() && printFromSnapshot(true)) {
+                System.err.println("[WARN] Database unavailable, served from snapshot: " + e.getMessage());
+                return ;
+            }
+            throw e;
+        }
+        long operationStarted = Metrics.start();
+        try {
+            if (this.batch) {
+                runBatch(connection);
+            } else {
+                runSingle(connection);
+            }
+        } finally {
+            Metrics.stop(this.batch ? "batch" : "operation", operationStarted);
+            long closeStarted = Metrics.start();
+            connection.close();
+            Metrics.stop("db.close", closeStarted);
+        }
+    }
+
+    /**
+     * Trains the archive with this command and times it with and without the archive.
+     * The training run really executes, so writes are refused.
+     */
+    private void runDumpCds() throws IOException {
+        boolean readOnly = !this.batch && !this.daemon && !this.client && ("get".equalsIgnoreCase(this.operation) ||
+                "getv".equalsIgnoreCase(this.operation) || "mget".equalsIgnoreCase(this.operation) || "list".equalsIgnoreCase(this.operation));
+        if(!readOnly) {
+            System.err.println("--dump-cds trains with a read-only operation (get, getv, mget or list)");
+            this.exitCode = BatchRunner.STATUS_ERROR;
+            return ;
+        }
+        try {
+            this.exitCode = CdsArchive.dump(new File(this.dumpCdsPath), this.args);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            this.exitCode = BatchRunner.STATUS_ERROR;
+        }
+    }
+
+    private void runDaemon() throws IOException {
+        ConnectionPool connectionPool = new ConnectionPool(this.dbUrl, this.dbUser, this.dbPass, this.poolSize, this.poolIdleTimeout * 1000L);
+        final ConfigDaemon configDaemon = new ConfigDaemon(connectionPool, this.dialect, this.table, this.daemonHost, this.daemonPort, this.daemonThreads);
+        configDaemon.setIdBlockSize(this.idBlockSize);
+        configDaemon.setClientIdleTimeoutMillis(this.daemonIdleTimeout * 1000L);
+        configDaemon.setStripeSelection(this.stripeSelection);
+        configDaemon.setOptimistic(this.optimistic);
+        configDaemon.setMaxRetries(this.maxRetries);
+        final MetricsEndpoint metricsEndpoint = (this.metricsPort > 0) ? new MetricsEndpoint(this.daemonHost, this.metricsPort) : null;
+        Runtime.getRuntime().addShutdownHook(new Thread() {
+            @Override
+            public void run() {
+                if(metricsEndpoint != null)
+                    metricsEndpoint.close();
+                configDaemon.close();
+                reportMetrics();
+            }
+        });
+        try {
+            configDaemon.checkSchema();
+        } catch (SQLException | InterruptedException e) {
+            System.err.println("[WARN] " + e.getMessage());
+        }
+        System.err.println("Listening on " + this.daemonHost + ":" + configDaemon.getLocalPort());
+        if(metricsEndpoint != null) {
+            metricsEndpoint.start();
+            System.err.println("Metrics on http://" + this.daemonHost + ":" + metricsEndpoint.getLocalPort() + "/metrics");
+        }
+        configDaemon.serve();
+        this.exitCode = 0;
+    }
+
+    private void runClient() {
+        StringBuilder request = new StringBuilder();
+        request.append(this.operation).append(' ').append(this.key);
+        if(this.expectVersion >= 0) {
+            request.append(' ').append(this.expectVersion);
+        }
+        if(this.value != null) {
+            request.append(' ').append(this.value);
+        }
+        try (DaemonClient daemonClient = new DaemonClient(this.daemonHost, this.daemonPort, 30000)) {
+            DaemonClient.Response response = daemonClient.send(request.toString());
+            if(response.getStatus() == BatchRunner.STATUS_OK) {
+                System.out.print(response.getValue());
+            }else if(response.getStatus() == BatchRunner.STATUS_CONFLICT) {
+                System.err.println("Version conflict, current version " + response.getValue());
+            }else if(!response.getValue().isEmpty()) {
+                System.err.println(response.getValue());
+            }
+            this.exitCode = response.getStatus();
+        } catch (IOException e) {
+            e.printStackTrace();
+            this.exitCode = BatchRunner.STATUS_ERROR;
+        }
+    }
+
+    private void runBatch(Connection connection) throws SQLException, IOException {
         connection.setTransactionIsolation(Connection.TRANSACTION_REPEATABLE_READ);
+        ConfigStore store = new ConfigStore(connection, this.dialect, this.table);
+        store.setStripeSelection(this.stripeSelection);
+        Reader input = (this.batchFile != null) ? new InputStreamReader(new FileInputStream(this.batchFile), "UTF-8") : new InputStreamReader(System.in);
+        try (BufferedReader reader = new BufferedReader(input)) {
+            BatchRunner runner = new BatchRunner(store, this.batchCommitPolicy);
+            this.exitCode = BatchRunner.print(runner.run(reader), System.out);
+        }
+    }
 
+    private void runSingle(Connection connection) throws SQLException {
         try {
-            PreparedStatement updatePreparedStatement = null;
-
-            Statement createTableStatment = connection.createStatement();
-            createTableStatment.execute("CREATE TABLE IF NOT EXISTS `test` (`ckey` VARCHAR(128) NOT NULL, `value` VARCHAR(256) NULL DEFAULT NULL, PRIMARY KEY (`ckey`))");
-
-            switch (this.operation) {
-                case "inc":
-                case "increment":
-                    if(this.value == null)
-                        this.value = "1";
-                    updatePreparedStatement = connection.prepareStatement("INSERT INTO `" + this.table + "` (`ckey`, `value`) VALUES (?, CAST(? AS INTEGER)) ON DUPLICATE KEY UPDATE `value` = CAST(`value` AS INTEGER) + 1");
-                    updatePreparedStatement.setString(1, this.key);
-                    updatePreparedStatement.setString(2, this.value);
-                    break;
-                case "dec":
-                case "decrement":
-                    if(this.value == null)
-                        this.value = "1";
-                    updatePreparedStatement = connection.prepareStatement("INSERT INTO `" + this.table + "` (`ckey`, `value`) VALUES (?, -CAST(? AS INTEGER)) ON DUPLICATE KEY UPDATE `value` = CAST(`value` AS INTEGER) - 1");
-                    updatePreparedStatement.setString(1, this.key);
-                    updatePreparedStatement.setString(2, this.value);
-                    break;
-                case "set":
-                    updatePreparedStatement = connection.prepareStatement("INSERT INTO `" + this.table + "` (`ckey`, `value`) VALUES (?, ?) ON DUPLICATE KEY UPDATE `value` = ?");
-                    updatePreparedStatement.setString(1, this.key);
-                    updatePreparedStatement.setString(2, this.value);
-                    updatePreparedStatement.setString(3, this.value);
-                    break;
-                case "get":
-                    break;
-                default:
-                    System.err.println("Need operation");
-                    return ;
+            ConfigStore store = new ConfigStore(connection, this.dialect, this.table);
+            store.setStripeSelection(this.stripeSelection);
+            store.setOptimistic(this.optimistic);
+            store.setMaxRetries(this.maxRetries);
+
+            if("init-schema".equalsIgnoreCase(this.operation)) {
+                SchemaManager.initSchema(connection, this.dialect, this.table);
+                this.exitCode = 0;
+                return ;
+            }
+            if("snapshot".equalsIgnoreCase(this.operation)) {
+                runSnapshotDump(store);
+                return ;
+            }
+            if("mget".equalsIgnoreCase(this.operation)) {
+                runMultiGet(store);
+                return ;
+            }
+            if("list".equalsIgnoreCase(this.operation)) {
+                runList(store);
+                return ;
+            }
+            if("watch".equalsIgnoreCase(this.operation)) {
+                runWatch(store);
+                return ;
+            }
+            if("export".equalsIgnoreCase(this.operation)) {
+                runExport(store);
+                return ;
+            }
+            if("import".equalsIgnoreCase(this.operation)) {
+                runImport(connection);
+                return ;
             }
 
-            if(updatePreparedStatement != null) {
-                updatePreparedStatement.execute();
-                updatePreparedStatement.close();
+            Operation.Type type = Operation.Type.fromName(this.operation);
+            if(type == null) {
+                System.err.println("Need operation");
+                return ;
             }
 
-            {
-                ResultSet resultSet;
-                PreparedStatement readPreparedStatement = connection.prepareStatement("SELECT `value` FROM `" + this.table + "` WHERE `ckey`=?");
-                readPreparedStatement.setString(1, this.key);
-                readPreparedStatement.execute();
-                resultSet = readPreparedStatement.getResultSet();
-                if (resultSet.next()) {
-                    System.out.print(resultSet.getString(1));
-                    this.exitCode = 0;
-                } else {
-                    this.exitCode = 1;
+            String result;
+            try {
+                result = store.execute(new Operation(type, this.key, this.value, this.expectVersion));
+            } catch (VersionConflictException e) {
+                System.err.println(e.getMessage());
+                this.exitCode = BatchRunner.STATUS_CONFLICT;
+                return ;
+            } catch (SQLException e) {
+                if(isCachedGet() && printFromSnapshot(true)) {
+                    System.err.println("[WARN] Database read failed, served from snapshot: " + e.getMessage());
+                    return ;
                 }
-                readPreparedStatement.close();
+                // Only look at the schema when something failed, a missing table gets a clear message
+                SchemaManager.checkTable(connection, this.table);
+                throw e;
+            }
+            if(type == Operation.Type.GET && this.snapshotPath != null) {
+                Map<String, String> values = new HashMap<>();
+                values.put(this.key, result);
+                updateSnapshot(values);
+            }
+            if (result != null) {
+                System.out.print(result);
+                this.exitCode = 0;
+            } else {
+                this.exitCode = 1;
             }
-
-            connection.commit();
         }catch (Exception e) {
-            connection.rollback();
             e.printStackTrace();
         }
+    }
+
+    private void runMultiGet(ConfigStore store) throws SQLException, IOException {
+        Map<String, String> values = store.getAll(this.keys);
+        PrintStream out = openOutput();
+        for(String key : this.keys) {
+            if(values.containsKey(key))
+                this.outputFormat.write(out, key, values.get(key));
+        }
+        out.flush();
+        this.exitCode = values.keySet().containsAll(this.keys) ? 0 : 1;
+        if(this.snapshotPath != null) {
+            Map<String, String> snapshotValues = new HashMap<>();
+            for(String key : this.keys) {
+                snapshotValues.put(key, values.get(key));
+            }
+            updateSnapshot(snapshotValues);
+        }
+    }
+
+    private boolean isCachedGet() {
+        return this.readThroughCache && !this.batch && !this.daemon && "get".equalsIgnoreCase(this.operation);
+    }
+
+    /**
+     * @param anyAge false to only use an entry read within --snapshot-max-age
+     * @return false if the snapshot can not answer
+     */
+    private boolean printFromSnapshot(boolean anyAge) {
+        ConfigSnapshot.Entry entry = ConfigSnapshot.open(new File(this.snapshotPath)).find(this.key);
+        if(entry == null) {
+            return false;
+        }
+        if(!anyAge && System.currentTimeMillis() - entry.getRefreshedMillis() > this.snapshotMaxAge * 1000L) {
+            return false;
+        }
+        if(entry.getValue() != null) {
+            System.out.print(entry.getValue());
+            this.exitCode = 0;
+        }else{
+            this.exitCode = 1;
+        }
+        return true;
+    }
+
+    /**
+     * A snapshot that can not be written never fails the read itself.
+     * Unchanged values refreshed within half of --snapshot-max-age are not written again.
+     */
+    private void updateSnapshot(Map<String, String> values) {
+        try {
+            ConfigSnapshot.update(new File(this.snapshotPath), values, this.snapshotMaxAge * 1000L / 2);
+        } catch (IOException e) {
+            System.err.println("[WARN] Could not update snapshot: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Replaces the snapshot with every key of the table.
+     */
+    private void runSnapshotDump(ConfigStore store) throws SQLException, IOException {
+        final List<ConfigSnapshot.Entry> entries = new ArrayList<>();
+        final long now = System.currentTimeMillis();
+        store.list("", new ConfigStore.RowCallback() {
+            @Override
+            public void row(String key, String value) {
+                entries.add(new ConfigSnapshot.Entry(key, value, now));
+            }
+        });
+        ConfigSnapshot.write(new File(this.snapshotPath), entries);
+        System.err.println("Wrote " + entries.size() + " keys to " + this.snapshotPath);
+        this.exitCode = 0;
+    }
+
+    private void runList(ConfigStore store) throws SQLException, IOException {
+        PrintStream out = openOutput();
+        printList(store, (this.prefix != null) ? this.prefix : "", out);
+        out.flush();
+        this.exitCode = 0;
+    }
+
+    /**
+     * Streams the table (or --prefix) to stdout as JSON lines or CSV, from one cursor. A striped counter is
+     * written as one row with its total, and imports as a plain counter. With --raw every stored row is written
+     * instead, shards and "#stripes" rows included, for an import with --raw that keeps the striping.
+     */
+    private void runExport(ConfigStore store) throws SQLException, IOException {
+        long startTime = System.currentTimeMillis();
+        final PrintStream out = openOutput();
+        ConfigStore.RowCallback callback = new ConfigStore.RowCallback() {
+            @Override
+            public void row(String key, String value) {
+                outputFormat.write(out, key, value);
+            }
+        };
+        String exportPrefix = (this.prefix != null) ? this.prefix : "";
+        int count = this.rawRows ? store.listRows(exportPrefix, callback) : store.list(exportPrefix, callback);
+        out.flush();
+        printRate("Exported", count, System.currentTimeMillis() - startTime);
+        this.exitCode = 0;
+    }
+
+    /**
+     * Upserts an export read from --input or stdin. With --resume the committed row count is kept in that
+     * file, so after a failure the same command continues after the last committed chunk. A different
+     * input, table or format is refused.
+     */
+    private void runImport(Connection connection) throws SQLException, IOException {
+        BulkImporter importer = new BulkImporter(connection, this.dialect, this.table);
+        importer.setBatchSize(this.importBatchSize);
+        importer.setCommitRows(this.importCommitRows);
+        importer.setMultiRow(this.multiRow);
+        importer.setRaw(this.rawRows);
+        importer.setMaxRetries(this.maxRetries);
+        if(this.resumePath != null) {
+            importer.setProgressFile(new File(this.resumePath));
+        }
+        if(this.importFile != null) {
+            importer.setInputName(new File(this.importFile).getAbsolutePath());
+        }
+        InputStream inputStream = (this.importFile != null) ? new FileInputStream(this.importFile) : System.in;
+        try (Reader reader = new InputStreamReader(inputStream, "UTF-8")) {
+            BulkImporter.Result result = importer.run(reader, this.outputFormat);
+            if(result.getSkippedRows() > 0) {
+                System.err.println("Skipped " + result.getSkippedRows() + " rows committed by an earlier run");
+            }
+            printRate("Imported", result.getImportedRows(), result.getElapsedMillis());
+            this.exitCode = 0;
+        } catch (BulkImporter.ResumeMismatchException e) {
+            System.err.println("Import refused: " + e.getMessage() + ", remove " + this.resumePath + " to import from the start");
+            this.exitCode = BatchRunner.STATUS_ERROR;
+        } catch (BulkImporter.ImportException e) {
+            System.err.println("Import failed after " + e.getCommittedRows() + " committed rows: " + e.getMessage());
+            printResumeHint();
+            this.exitCode = BatchRunner.STATUS_ERROR;
+        } catch (IOException e) {
+            System.err.println("Import failed: " + e.getMessage());
+            printResumeHint();
+            this.exitCode = BatchRunner.STATUS_ERROR;
+        }
+    }
+
+    private void printResumeHint() {
+        if(this.resumePath != null) {
+            System.err.println("Run the same command again to continue after the last committed chunk");
+        }
+    }
+
+    private static void printRate(String action, long rows, long elapsedMillis) {
+        long rowsPerSecond = rows * 1000L / Math.max(1, elapsedMillis);
+        System.err.println(action + " " + rows + " rows in " + elapsedMillis + " ms (" + rowsPerSecond + " rows/s)");
+    }
+
+    private void printList(ConfigStore store, String prefix, final PrintStream out) throws SQLException {
+        store.list(prefix, new ConfigStore.RowCallback() {
+            @Override
+            public void row(String key, String value) {
+                outputFormat.write(out, key, value);
+            }
+        });
+    }
+
+    /**
+     * Prints the key's value, or every key of the prefix followed by an empty line, after each change.
+     * Without --follow it stops after the first change. Exits with 1 if --watch-timeout passes first.
+     */
+    private void runWatch(ConfigStore store) throws SQLException, IOException, InterruptedException {
+        boolean watchPrefix = (this.prefix != null);
+        ConfigWatcher watcher = new ConfigWatcher(store, watchPrefix ? this.prefix : this.key, watchPrefix);
+        watcher.setMinIntervalMillis(this.pollMinInterval);
+        watcher.setMaxIntervalMillis(this.pollMaxInterval);
+        PrintStream out = openOutput();
+        try {
+            watcher.start();
+            do {
+                if(!watcher.await(this.watchTimeout * 1000L)) {
+                    this.exitCode = 1;
+                    return ;
+                }
+                if(watchPrefix) {
+                    printList(store, this.prefix, out);
+                    out.println();
+                }else{
+                    this.outputFormat.write(out, this.key, store.get(this.key));
+                }
+                out.flush();
+            } while(this.follow);
+            this.exitCode = 0;
+        } finally {
+            watcher.close();
+        }
+    }
 
-        connection.close();
+    /**
+     * Buffered stdout, flushed as the buffer fills so rows go out while the query is still running.
+     */
+    private static PrintStream openOutput() throws UnsupportedEncodingException {
+        return new PrintStream(new BufferedOutputStream(new FileOutputStream(FileDescriptor.out), 65536), false, "UTF-8");
     }
-    public static void main(String[] args) throws ClassNotFoundException, SQLException {
+
+    /**
+     * Writes the --timings line to stderr and the --metrics-file, once.
+     */
+    private synchronized void reportMetrics() {
+        if(this.metricsReported || !Metrics.isEnabled()) {
+            return ;
+        }
+        this.metricsReported = true;
+        try {
+            if(this.timings) {
+                StringBuilder line = new StringBuilder();
+                Metrics.writeJson(line);
+                System.err.print(line);
+                System.err.flush();
+            }
+            if(this.metricsFile != null) {
+                try(Writer writer = new OutputStreamWriter(new FileOutputStream(this.metricsFile), "UTF-8")) {
+                    Metrics.writePrometheus(writer);
+                }
+            }
+        } catch (IOException e) {
+            System.err.println("[WARN] Could not write metrics: " + e.getMessage());
+        }
+    }
+
+    public static void main(String[] args) throws ClassNotFoundException, SQLException, IOException {
         SimpleClusterConfig instance = new SimpleClusterConfig();
-        if(instance.parseArgs(new String[] {"--table=test", "--key", "test0001", "--op=set", "--value=abcd"})) {
-            instance.run();
+        if(instance.parseArgs(args)) {
+            try {
+                instance.run();
+            } finally {
+                instance.reportMetrics();
+            }
         }
         System.exit(instance.exitCode);
     }
@@ -0,0 +1,24 @@
+package kr.jclab.simplejavasoft.simpleclusterconfig;
+
+import java.sql.SQLException;
+
+/**
+ * A compare-and-set found another version than expected.
+ */
+public class VersionConflictException extends SQLException {
+    private static final long serialVersionUID = 1L;
+
+    private final long currentVersion;
+
+    /**
+     * @param currentVersion the version found, 0 if the key does not exist
+     */
+    public VersionConflictException(String key, long expectedVersion, long currentVersion) {
+        super("Version conflict on " + key + ": expected " + expectedVersion + ", found " + currentVersion);
+        this.currentVersion = currentVersion;
+    }
+
+    public long getCurrentVersion() {
+        return currentVersion;
+    }
+}
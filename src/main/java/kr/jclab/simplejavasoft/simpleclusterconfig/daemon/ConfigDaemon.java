@@ -0,0 +1,258 @@
+package kr.jclab.simplejavasoft.simpleclusterconfig.daemon;
+
+import kr.jclab.simplejavasoft.simpleclusterconfig.BatchRunner;
+import kr.jclab.simplejavasoft.simpleclusterconfig.ConfigStore;
+import kr.jclab.simplejavasoft.simpleclusterconfig.IdAllocator;
+import kr.jclab.simplejavasoft.simpleclusterconfig.Operation;
+import kr.jclab.simplejavasoft.simpleclusterconfig.SchemaManager;
+import kr.jclab.simplejavasoft.simpleclusterconfig.VersionConflictException;
+import kr.jclab.simplejavasoft.simpleclusterconfig.dialect.SqlDialect;
+import kr.jclab.simplejavasoft.simpleclusterconfig.metrics.Metrics;
+
+import java.io.*;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Long-running server that answers {@link DaemonProtocol} requests from a {@link ConnectionPool}.
+ * Every client socket is served by its own worker, so requests run concurrently up to the pool size.
+ * A client that sends nothing for the idle timeout is disconnected, so idle clients do not hold workers.
+ */
+public class ConfigDaemon implements AutoCloseable {
+    private final ConnectionPool connectionPool;
+    private final SqlDialect dialect;
+    private final String table;
+    private final ServerSocket serverSocket;
+    private final ExecutorService workers;
+    private final ScheduledExecutorService reaper;
+    private final ConcurrentMap<String, IdAllocator> idAllocators = new ConcurrentHashMap<>();
+    private long idBlockSize = 100;
+    private ConfigStore.StripeSelection stripeSelection = ConfigStore.StripeSelection.RANDOM;
+    private boolean optimistic = false;
+    private int maxRetries = 5;
+    private int clientIdleTimeoutMillis = 60000;
+
+    public ConfigDaemon(ConnectionPool connectionPool, SqlDialect dialect, String table, String host, int port, int threads) throws IOException {
+        this.connectionPool = connectionPool;
+        this.dialect = dialect;
+        this.table = table;
+        this.serverSocket = new ServerSocket(port, 50, InetAddress.getByName(host));
+        this.workers = Executors.newFixedThreadPool(threads);
+        this.reaper = Executors.newSingleThreadScheduledExecutor();
+    }
+
+    /**
+     * @param idBlockSize number of ids reserved at once for next-id requests
+     */
+    public void setIdBlockSize(long idBlockSize) {
+        this.idBlockSize = idBlockSize;
+    }
+
+    public void setStripeSelection(ConfigStore.StripeSelection stripeSelection) {
+        this.stripeSelection = stripeSelection;
+    }
+
+    /**
+     * @see ConfigStore#setOptimistic(boolean)
+     */
+    public void setOptimistic(boolean optimistic) {
+        this.optimistic = optimistic;
+    }
+
+    public void setMaxRetries(int maxRetries) {
+        this.maxRetries = maxRetries;
+    }
+
+    /**
+     * @param clientIdleTimeoutMillis how long a client may wait between requests before it is disconnected, 0 for no limit
+     */
+    public void setClientIdleTimeoutMillis(long clientIdleTimeoutMillis) {
+        this.clientIdleTimeoutMillis = (int) Math.min(Integer.MAX_VALUE, Math.max(0, clientIdleTimeoutMillis));
+    }
+
+    public int getLocalPort() {
+        return this.serverSocket.getLocalPort();
+    }
+
+    /**
+     * Checks the config table once for the daemon's lifetime.
+     */
+    public void checkSchema() throws SQLException, InterruptedException {
+        Connection connection = this.connectionPool.borrow();
+        try {
+            SchemaManager.checkTable(connection, this.table);
+        } finally {
+            this.connectionPool.release(connection, false);
+        }
+    }
+
+    /**
+     * Accepts clients until {@link #close()} is called.
+     */
+    public void serve() throws IOException {
+        long idleTimeout = Math.max(1000, this.connectionPool.getIdleTimeoutMillis());
+        this.reaper.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                connectionPool.evictIdle();
+            }
+        }, idleTimeout, idleTimeout / 2, TimeUnit.MILLISECONDS);
+
+        while(!this.serverSocket.isClosed()) {
+            final Socket socket;
+            try {
+                socket = this.serverSocket.accept();
+            } catch (SocketException e) {
+                if(this.serverSocket.isClosed())
+                    break;
+                throw e;
+            }
+            this.workers.execute(new Runnable() {
+                @Override
+                public void run() {
+                    handleClient(socket);
+                }
+            });
+        }
+    }
+
+    private void handleClient(Socket socket) {
+        try(Socket client = socket) {
+            client.setSoTimeout(this.clientIdleTimeoutMillis);
+            BufferedReader reader = new BufferedReader(new InputStreamReader(client.getInputStream(), "UTF-8"));
+            Writer writer = new BufferedWriter(new OutputStreamWriter(client.getOutputStream(), "UTF-8"));
+            String line;
+            while((line = reader.readLine()) != null) {
+                writer.write(handleRequest(DaemonProtocol.unescape(line)));
+                writer.write('\n');
+                writer.flush();
+            }
+        } catch (SocketTimeoutException e) {
+            // idle client, dropped to free the worker
+        } catch (IOException e) {
+            System.err.println("[WARN] Daemon client error: " + e.getMessage());
+        }
+    }
+
+    String handleRequest(String line) {
+        Operation operation;
+        try {
+            operation = Operation.parse(line);
+        } catch (IllegalArgumentException e) {
+            return DaemonProtocol.formatResponse(BatchRunner.STATUS_ERROR, e.getMessage());
+        }
+        if(operation == null) {
+            return DaemonProtocol.formatResponse(BatchRunner.STATUS_ERROR, "Need operation");
+        }
+
+        if(operation.getType() == Operation.Type.NEXT_ID) {
+            try {
+                return DaemonProtocol.formatResponse(BatchRunner.STATUS_OK, Long.toString(getIdAllocator(operation.getKey()).next()));
+            } catch (SQLException | IllegalArgumentException e) {
+                return DaemonProtocol.formatResponse(BatchRunner.STATUS_ERROR, e.getMessage());
+            }
+        }
+
+        Connection connection;
+        long borrowStarted = Metrics.start();
+        try {
+            connection = this.connectionPool.borrow();
+            Metrics.stop("daemon.pool_borrow", borrowStarted);
+        } catch (SQLException e) {
+            return DaemonProtocol.formatResponse(BatchRunner.STATUS_ERROR, e.getMessage());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return DaemonProtocol.formatResponse(BatchRunner.STATUS_ERROR, "Interrupted");
+        }
+
+        boolean broken = false;
+        try {
+            ConfigStore store = new ConfigStore(connection, this.dialect, this.table);
+            store.setStripeSelection(this.stripeSelection);
+            store.setOptimistic(this.optimistic);
+            store.setMaxRetries(this.maxRetries);
+            String value = store.execute(operation);
+            return DaemonProtocol.formatResponse((value != null) ? BatchRunner.STATUS_OK : BatchRunner.STATUS_NOT_FOUND, value);
+        } catch (VersionConflictException e) {
+            return DaemonProtocol.formatResponse(BatchRunner.STATUS_CONFLICT, Long.toString(e.getCurrentVersion()));
+        } catch (SQLException e) {
+            broken = isConnectionBroken(connection);
+            return DaemonProtocol.formatResponse(BatchRunner.STATUS_ERROR, e.getMessage());
+        } catch (IllegalArgumentException e) {
+            return DaemonProtocol.formatResponse(BatchRunner.STATUS_ERROR, e.getMessage());
+        } finally {
+            this.connectionPool.release(connection, broken);
+        }
+    }
+
+    private IdAllocator getIdAllocator(String key) {
+        IdAllocator idAllocator = this.idAllocators.get(key);
+        if(idAllocator == null) {
+            idAllocator = new IdAllocator(new IdAllocator.BlockSource() {
+                @Override
+                public long[] reserve(String key, long count) throws SQLException {
+                    return reserveBlock(key, count);
+                }
+            }, key, this.idBlockSize);
+            IdAllocator existing = this.idAllocators.putIfAbsent(key, idAllocator);
+            if(existing != null) {
+                idAllocator = existing;
+            }
+        }
+        return idAllocator;
+    }
+
+    private long[] reserveBlock(String key, long count) throws SQLException {
+        Connection connection;
+        try {
+            connection = this.connectionPool.borrow();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SQLException("Interrupted", e);
+        }
+        boolean broken = false;
+        try {
+            connection.setAutoCommit(false);
+            long[] range = new ConfigStore(connection, this.dialect, this.table).reserve(key, count);
+            connection.commit();
+            return range;
+        } catch (SQLException | RuntimeException e) {
+            connection.rollback();
+            broken = (e instanceof SQLException) && isConnectionBroken(connection);
+            throw e;
+        } finally {
+            this.connectionPool.release(connection, broken);
+        }
+    }
+
+    private static boolean isConnectionBroken(Connection connection) {
+        try {
+            return !connection.isValid(2);
+        } catch (SQLException e) {
+            return true;
+        }
+    }
+
+    @Override
+    public void close() {
+        try {
+            this.serverSocket.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        this.reaper.shutdownNow();
+        this.workers.shutdownNow();
+        this.connectionPool.close();
+    }
+}
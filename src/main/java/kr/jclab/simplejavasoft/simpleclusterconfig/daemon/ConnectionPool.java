@@ -0,0 +1,38 @@
+package kr.jclab.simplejavasoft.simpleclusterconfig.daemon;
+
+import kr.jclab.simplejavasoft.simpleclusterconfig.IdlePool;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+
+/**
+ * Small JDBC connection pool. At most maxSize connections are open at once, and idle
+ * connections are closed after idleTimeoutMillis.
+ */
+public class ConnectionPool extends IdlePool<Connection> {
+    private final String url;
+    private final String user;
+    private final String password;
+
+    public ConnectionPool(String url, String user, String password, int maxSize, long idleTimeoutMillis) {
+        super(maxSize, idleTimeoutMillis);
+        this.url = url;
+        this.user = user;
+        this.password = password;
+    }
+
+    @Override
+    protected Connection open() throws SQLException {
+        return DriverManager.getConnection(this.url, this.user, this.password);
+    }
+
+    @Override
+    protected void dispose(Connection connection) {
+        try {
+            connection.close();
+        } catch (SQLException e) {
+            // already broken
+        }
+    }
+}
@@ -0,0 +1,77 @@
+package kr.jclab.simplejavasoft.simpleclusterconfig.daemon;
+
+import kr.jclab.simplejavasoft.simpleclusterconfig.BatchRunner;
+
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+
+/**
+ * Sends requests to a running {@link ConfigDaemon}.
+ */
+public class DaemonClient implements AutoCloseable {
+    private final Socket socket;
+    private final BufferedReader reader;
+    private final Writer writer;
+
+    public DaemonClient(String host, int port, int timeoutMillis) throws IOException {
+        this.socket = new Socket();
+        this.socket.setTcpNoDelay(true);
+        this.socket.setSoTimeout(timeoutMillis);
+        this.socket.connect(new InetSocketAddress(host, port), timeoutMillis);
+        this.reader = new BufferedReader(new InputStreamReader(this.socket.getInputStream(), "UTF-8"));
+        this.writer = new BufferedWriter(new OutputStreamWriter(this.socket.getOutputStream(), "UTF-8"));
+    }
+
+    /**
+     * @param request one request line, e.g. "get cluster.node.count"
+     */
+    public Response send(String request) throws IOException {
+        this.writer.write(DaemonProtocol.escape(request));
+        this.writer.write('\n');
+        this.writer.flush();
+
+        String line = this.reader.readLine();
+        if(line == null) {
+            throw new EOFException("Daemon closed the connection");
+        }
+        int pos = line.indexOf('\t');
+        if(pos < 0) {
+            throw new IOException("Malformed daemon response: " + line);
+        }
+        int status;
+        try {
+            status = Integer.parseInt(line.substring(0, pos));
+        } catch (NumberFormatException e) {
+            throw new IOException("Malformed daemon response: " + line);
+        }
+        String value = DaemonProtocol.unescape(line.substring(pos + 1));
+        return new Response(status, value);
+    }
+
+    @Override
+    public void close() throws IOException {
+        this.socket.close();
+    }
+
+    public static class Response {
+        private final int status;
+        private final String value;
+
+        public Response(int status, String value) {
+            this.status = status;
+            this.value = value;
+        }
+
+        public int getStatus() {
+            return status;
+        }
+
+        /**
+         * @return the value if the status is {@link BatchRunner#STATUS_OK}, otherwise an error message or ""
+         */
+        public String getValue() {
+            return value;
+        }
+    }
+}
@@ -0,0 +1,64 @@
+package kr.jclab.simplejavasoft.simpleclusterconfig.daemon;
+
+/**
+ * Line protocol between {@link DaemonClient} and {@link ConfigDaemon}.
+ *
+ * Request:  "&lt;op&gt; &lt;key&gt; [value]" (the batch line format), one per line.
+ * Response: "&lt;status&gt;\t&lt;value&gt;" with the same status codes as the CLI exit code.
+ * Backslash, CR and LF in values are escaped so every message stays on one line.
+ */
+public final class DaemonProtocol {
+    public static final String DEFAULT_HOST = "127.0.0.1";
+    public static final int DEFAULT_PORT = 17530;
+
+    private DaemonProtocol() {
+    }
+
+    public static String formatResponse(int status, String value) {
+        return status + "\t" + ((value != null) ? escape(value) : "");
+    }
+
+    public static String escape(String value) {
+        StringBuilder sb = new StringBuilder(value.length());
+        for(int i=0, l=value.length(); i<l; i++) {
+            char c = value.charAt(i);
+            switch (c) {
+                case '\\':
+                    sb.append("\\\\");
+                    break;
+                case '\n':
+                    sb.append("\\n");
+                    break;
+                case '\r':
+                    sb.append("\\r");
+                    break;
+                default:
+                    sb.append(c);
+            }
+        }
+        return sb.toString();
+    }
+
+    public static String unescape(String value) {
+        StringBuilder sb = new StringBuilder(value.length());
+        for(int i=0, l=value.length(); i<l; i++) {
+            char c = value.charAt(i);
+            if(c == '\\' && i + 1 < l) {
+                char next = value.charAt(++i);
+                switch (next) {
+                    case 'n':
+                        sb.append('\n');
+                        break;
+                    case 'r':
+                        sb.append('\r');
+                        break;
+                    default:
+                        sb.append(next);
+                }
+            }else{
+                sb.append(c);
+            }
+        }
+        return sb.toString();
+    }
+}
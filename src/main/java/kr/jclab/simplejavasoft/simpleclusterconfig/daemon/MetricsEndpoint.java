@@ -0,0 +1,55 @@
+package kr.jclab.simplejavasoft.simpleclusterconfig.daemon;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import kr.jclab.simplejavasoft.simpleclusterconfig.metrics.Metrics;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+
+/**
+ * Serves {@link Metrics} in Prometheus text format on GET /metrics, next to a running daemon.
+ */
+public class MetricsEndpoint implements AutoCloseable {
+    private final HttpServer server;
+
+    public MetricsEndpoint(String host, int port) throws IOException {
+        this.server = HttpServer.create(new InetSocketAddress(host, port), 0);
+        this.server.createContext("/metrics", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                try {
+                    if(!"GET".equals(exchange.getRequestMethod())) {
+                        exchange.sendResponseHeaders(405, -1);
+                        return ;
+                    }
+                    StringBuilder body = new StringBuilder();
+                    Metrics.writePrometheus(body);
+                    byte[] bytes = body.toString().getBytes("UTF-8");
+                    exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+                    exchange.sendResponseHeaders(200, bytes.length);
+                    try(OutputStream outputStream = exchange.getResponseBody()) {
+                        outputStream.write(bytes);
+                    }
+                } finally {
+                    exchange.close();
+                }
+            }
+        });
+    }
+
+    public void start() {
+        this.server.start();
+    }
+
+    public int getLocalPort() {
+        return this.server.getAddress().getPort();
+    }
+
+    @Override
+    public void close() {
+        this.server.stop(0);
+    }
+}
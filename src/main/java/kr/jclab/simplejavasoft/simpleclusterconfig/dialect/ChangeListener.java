@@ -0,0 +1,18 @@
+package kr.jclab.simplejavasoft.simpleclusterconfig.dialect;
+
+import java.sql.SQLException;
+import java.util.List;
+
+/**
+ * Change notifications pushed by the database for one config table.
+ */
+public interface ChangeListener {
+    /**
+     * Waits for notifications.
+     *
+     * @return the changed keys, empty if nothing arrived within the timeout
+     */
+    List<String> await(long timeoutMillis) throws SQLException;
+
+    void close() throws SQLException;
+}
@@ -0,0 +1,55 @@
+package kr.jclab.simplejavasoft.simpleclusterconfig.dialect;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+
+/**
+ * H2 1.4.199 or newer, using MERGE ... USING (so the version can be bumped).
+ *
+ * On H2 2.x an increment reads the merged row back from a FINAL TABLE data change delta table.
+ * 1.4.x does not parse that (1.4.199) or returns the old row (1.4.200), so there increments are
+ * followed by a SELECT.
+ */
+public class H2Dialect extends SqlDialect {
+    @Override
+    public String getName() {
+        return "h2";
+    }
+
+    @Override
+    public String quote(String identifier) {
+        return quote(identifier, '"');
+    }
+
+    @Override
+    public String upsertSql(String table) {
+        String quotedTable = quote(table);
+        return "MERGE INTO " + quotedTable + " T USING (SELECT CAST(? AS VARCHAR) K, CAST(? AS VARCHAR) V FROM DUAL " +
+                "WHERE NOT EXISTS (SELECT 1 FROM " + quotedTable + " X WHERE X.\"ckey\" = ?)) S ON (T.\"ckey\" = S.K) " +
+                "WHEN MATCHED THEN UPDATE SET \"value\" = S.V, \"version\" = T.\"version\" + 1 " +
+                "WHEN NOT MATCHED THEN INSERT (\"ckey\", \"value\") VALUES (S.K, S.V)";
+    }
+
+    @Override
+    public String incrementSql(String table) {
+        String quotedTable = quote(table);
+        return "MERGE INTO " + quotedTable + " T USING (SELECT CAST(? AS VARCHAR) K, CAST(? AS BIGINT) D) S ON (T.\"ckey\" = S.K) " +
+                "WHEN MATCHED THEN UPDATE SET \"value\" = CAST(CAST(T.\"value\" AS BIGINT) + S.D AS VARCHAR), \"version\" = T.\"version\" + 1 " +
+                "WHEN NOT MATCHED THEN INSERT (\"ckey\", \"value\") VALUES (S.K, CAST(S.D AS VARCHAR))";
+    }
+
+    @Override
+    public String incrementReturningSql(String table) {
+        return "SELECT F.\"value\", S.\"value\" FROM FINAL TABLE (" + incrementSql(table) + ") F LEFT JOIN " + quote(table) + " S ON S.\"ckey\" = ?";
+    }
+
+    @Override
+    public boolean isIncrementReturningSupported(Connection connection) throws SQLException {
+        return connection.getMetaData().getDatabaseMajorVersion() >= 2;
+    }
+
+    @Override
+    protected String binaryKeyOrder() {
+        return "STRINGTOUTF8(\"ckey\")";
+    }
+}
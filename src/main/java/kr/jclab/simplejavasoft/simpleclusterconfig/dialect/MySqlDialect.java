@@ -0,0 +1,81 @@
+package kr.jclab.simplejavasoft.simpleclusterconfig.dialect;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * MySQL and MariaDB. INSERT ... ON DUPLICATE KEY UPDATE has no way to return the updated row,
+ * so increments need a separate SELECT.
+ */
+public class MySqlDialect extends SqlDialect {
+    @Override
+    public String getName() {
+        return "mysql";
+    }
+
+    @Override
+    public String quote(String identifier) {
+        return quote(identifier, '`');
+    }
+
+    @Override
+    public String upsertSql(String table) {
+        return "INSERT INTO " + quote(table) + " (`ckey`, `value`) VALUES (?, ?) ON DUPLICATE KEY UPDATE `value` = VALUES(`value`), `version` = `version` + 1";
+    }
+
+    /**
+     * INSERT ... SELECT ... WHERE NOT EXISTS would take gap locks on the "#stripes" key under REPEATABLE READ,
+     * and is unsafe for statement-based replication. So the upsert is a plain one.
+     */
+    @Override
+    public boolean isUpsertStripeCheckSupported() {
+        return false;
+    }
+
+    @Override
+    public String multiRowUpsertSql(String table, int rows) {
+        return "INSERT INTO " + quote(table) + " (`ckey`, `value`) VALUES " + valueRows(rows) + " ON DUPLICATE KEY UPDATE `value` = VALUES(`value`), `version` = `version` + 1";
+    }
+
+    @Override
+    public String incrementSql(String table) {
+        return "INSERT INTO " + quote(table) + " (`ckey`, `value`) VALUES (?, ?) ON DUPLICATE KEY UPDATE `value` = CAST(`value` AS SIGNED) + CAST(VALUES(`value`) AS SIGNED), `version` = `version` + 1";
+    }
+
+    /**
+     * MySQL has no sequences before MariaDB 10.3, an AUTO_INCREMENT column needs an index of its own.
+     * Not a unique one: ON DUPLICATE KEY UPDATE with two unique keys is unsafe for statement-based replication.
+     */
+    @Override
+    protected String seqColumnType(String table) {
+        return "BIGINT NOT NULL AUTO_INCREMENT";
+    }
+
+    @Override
+    protected String seqIndexDefinition() {
+        return ", KEY (`seq`)";
+    }
+
+    @Override
+    public List<String> createSequenceSql(String table) {
+        return Collections.emptyList();
+    }
+
+    @Override
+    public String addSeqColumnSql(String table) {
+        return super.addSeqColumnSql(table) + ", ADD KEY (`seq`)";
+    }
+
+    @Override
+    protected String binaryKeyOrder() {
+        return "CAST(`ckey` AS BINARY)";
+    }
+
+    /**
+     * Connector/J only streams rows one by one with this value, any other fetch size reads the whole result.
+     */
+    @Override
+    public int getStreamingFetchSize() {
+        return Integer.MIN_VALUE;
+    }
+}
@@ -0,0 +1,88 @@
+package kr.jclab.simplejavasoft.simpleclusterconfig.dialect;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * LISTEN on a PostgreSQL connection. The driver is loaded from a JBoss module at runtime,
+ * so PGConnection.getNotifications(int) (pgjdbc 42.2+) is called through reflection.
+ */
+class PgChangeListener implements ChangeListener {
+    private final Connection connection;
+    private final String channel;
+    private final Object pgConnection;
+    private final Method getNotifications;
+    private final Method getParameter;
+
+    private PgChangeListener(Connection connection, String channel, Object pgConnection, Method getNotifications, Method getParameter) {
+        this.connection = connection;
+        this.channel = channel;
+        this.pgConnection = pgConnection;
+        this.getNotifications = getNotifications;
+        this.getParameter = getParameter;
+    }
+
+    /**
+     * @param quotedChannel channel name as an SQL identifier
+     * @return null if the driver has no blocking notification API
+     */
+    static PgChangeListener open(Connection connection, String quotedChannel) throws SQLException {
+        Object pgConnection;
+        Method getNotifications;
+        Method getParameter;
+        try {
+            ClassLoader classLoader = connection.getClass().getClassLoader();
+            Class<?> pgConnectionClass = Class.forName("org.postgresql.PGConnection", false, classLoader);
+            Class<?> pgNotificationClass = Class.forName("org.postgresql.PGNotification", false, classLoader);
+            pgConnection = connection.unwrap(pgConnectionClass);
+            getNotifications = pgConnectionClass.getMethod("getNotifications", int.class);
+            getParameter = pgNotificationClass.getMethod("getParameter");
+        } catch (ClassNotFoundException | NoSuchMethodException e) {
+            return null;
+        }
+        try(Statement statement = connection.createStatement()) {
+            statement.execute("LISTEN " + quotedChannel);
+        }
+        return new PgChangeListener(connection, quotedChannel, pgConnection, getNotifications, getParameter);
+    }
+
+    @Override
+    public List<String> await(long timeoutMillis) throws SQLException {
+        Object[] notifications;
+        try {
+            // 0 would block without a limit
+            notifications = (Object[]) this.getNotifications.invoke(this.pgConnection, (int) Math.max(1, Math.min(timeoutMillis, Integer.MAX_VALUE)));
+        } catch (IllegalAccessException e) {
+            throw new SQLException(e);
+        } catch (InvocationTargetException e) {
+            if(e.getCause() instanceof SQLException)
+                throw (SQLException) e.getCause();
+            throw new SQLException(e.getCause());
+        }
+        if(notifications == null || notifications.length == 0) {
+            return Collections.emptyList();
+        }
+        List<String> keys = new ArrayList<>(notifications.length);
+        for(Object notification : notifications) {
+            try {
+                keys.add((String) this.getParameter.invoke(notification));
+            } catch (IllegalAccessException | InvocationTargetException e) {
+                throw new SQLException(e);
+            }
+        }
+        return keys;
+    }
+
+    @Override
+    public void close() throws SQLException {
+        try(Statement statement = this.connection.createStatement()) {
+            statement.execute("UNLISTEN " + this.channel);
+        }
+    }
+}
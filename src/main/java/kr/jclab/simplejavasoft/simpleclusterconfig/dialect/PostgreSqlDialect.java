@@ -0,0 +1,94 @@
+package kr.jclab.simplejavasoft.simpleclusterconfig.dialect;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * PostgreSQL 9.5+, using INSERT ... ON CONFLICT ... RETURNING, and a trigger with pg_notify for watches.
+ * New tables get a "C" collated key column, so LIKE prefix lookups can use the primary key index.
+ */
+public class PostgreSqlDialect extends SqlDialect {
+    @Override
+    public String getName() {
+        return "postgresql";
+    }
+
+    @Override
+    public String quote(String identifier) {
+        return quote(identifier, '"');
+    }
+
+    @Override
+    public String upsertSql(String table) {
+        return "INSERT INTO " + quote(table) + " (\"ckey\", \"value\") SELECT ?, ? WHERE NOT EXISTS (SELECT 1 FROM " + quote(table) + " s WHERE s.\"ckey\" = ?) ON CONFLICT (\"ckey\") DO UPDATE SET \"value\" = EXCLUDED.\"value\", \"version\" = " + quote(table) + ".\"version\" + 1";
+    }
+
+    @Override
+    public String multiRowUpsertSql(String table, int rows) {
+        return "INSERT INTO " + quote(table) + " (\"ckey\", \"value\") VALUES " + valueRows(rows) + " ON CONFLICT (\"ckey\") DO UPDATE SET \"value\" = EXCLUDED.\"value\", \"version\" = " + quote(table) + ".\"version\" + 1";
+    }
+
+    @Override
+    public String incrementSql(String table) {
+        String quotedTable = quote(table);
+        return "INSERT INTO " + quotedTable + " (\"ckey\", \"value\") VALUES (?, ?) ON CONFLICT (\"ckey\") DO UPDATE SET " +
+                "\"value\" = CAST(CAST(" + quotedTable + ".\"value\" AS BIGINT) + CAST(EXCLUDED.\"value\" AS BIGINT) AS VARCHAR), " +
+                "\"version\" = " + quotedTable + ".\"version\" + 1";
+    }
+
+    @Override
+    public String incrementReturningSql(String table) {
+        return "WITH u AS (" + incrementSql(table) + " RETURNING \"value\") SELECT u.\"value\", s.\"value\" FROM u LEFT JOIN " + quote(table) + " s ON s.\"ckey\" = ?";
+    }
+
+    /**
+     * Numbered from a sequence of its own, also when added to a table that has rows.
+     */
+    @Override
+    protected String seqColumnType(String table) {
+        return "BIGSERIAL";
+    }
+
+    @Override
+    public List<String> createSequenceSql(String table) {
+        return Collections.emptyList();
+    }
+
+    @Override
+    protected String keyColumnType() {
+        return "VARCHAR(128) COLLATE \"C\"";
+    }
+
+    /**
+     * Same as the key column's own order for tables created with the C collation, so the index is used.
+     */
+    @Override
+    protected String binaryKeyOrder() {
+        return "\"ckey\" COLLATE \"C\"";
+    }
+
+    /**
+     * A row trigger that sends the changed key to the channel "&lt;table&gt;_changes".
+     */
+    @Override
+    public List<String> changeNotificationSql(String table) {
+        String function = quote(table + "_notify");
+        String channel = (table + "_changes").replace("'", "''");
+        return Arrays.asList(
+                "CREATE OR REPLACE FUNCTION " + function + "() RETURNS trigger AS $$ BEGIN " +
+                        "PERFORM pg_notify('" + channel + "', CASE WHEN TG_OP = 'DELETE' THEN OLD.\"ckey\" ELSE NEW.\"ckey\" END); " +
+                        "RETURN NULL; END $$ LANGUAGE plpgsql",
+                "DROP TRIGGER IF EXISTS " + function + " ON " + quote(table),
+                "CREATE TRIGGER " + function + " AFTER INSERT OR UPDATE OR DELETE ON " + quote(table) +
+                        " FOR EACH ROW EXECUTE PROCEDURE " + function + "()"
+        );
+    }
+
+    @Override
+    public ChangeListener openChangeListener(Connection connection, String table) throws SQLException {
+        return PgChangeListener.open(connection, quote(table + "_changes"));
+    }
+}
@@ -0,0 +1,315 @@
+package kr.jclab.simplejavasoft.simpleclusterconfig.dialect;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Database specific SQL for the config table.
+ *
+ * Write statements take (ckey, value) as their first two parameters. For increments the value
+ * parameter is the signed delta, so decrement is an increment by the negated amount.
+ * Every write of an existing row must bump its version, new rows start at version 1 and get the next
+ * number of the table's sequence in "seq", so a key deleted and written again is told apart.
+ *
+ * Shard rows are found with LIKE prefix patterns (see {@link #likePrefix(String)}), not with key ranges:
+ * a range from "key#" to "key$" only holds them under a binary collation of the key column.
+ */
+public abstract class SqlDialect {
+    /** Escape character of the patterns built by {@link #likePrefix(String)} */
+    public static final char LIKE_ESCAPE = '!';
+
+    public abstract String getName();
+
+    public abstract String quote(String identifier);
+
+    /**
+     * Inserts or replaces a value. Parameters: key, value, key + "#stripes".
+     * Writes nothing (update count 0) if a row with the third parameter as key exists, so a set never
+     * silently leaves the shards of a striped counter behind. Null as third parameter always writes.
+     * Without {@link #isUpsertStripeCheckSupported()} the parameters are only key and value, and it always writes.
+     */
+    public abstract String upsertSql(String table);
+
+    /**
+     * @return false if {@link #upsertSql(String)} has no striped counter check, the caller then reads the
+     *         "#stripes" row itself
+     */
+    public boolean isUpsertStripeCheckSupported() {
+        return true;
+    }
+
+    /**
+     * {@link #upsertSql(String)} for several rows in one statement, without the striped counter check.
+     * Parameters: key, value per row. A key may appear only once.
+     *
+     * @return null if the database has no multi-row upsert
+     */
+    public String multiRowUpsertSql(String table, int rows) {
+        return null;
+    }
+
+    /**
+     * "(?, ?), (?, ?)" for rows rows.
+     */
+    protected static String valueRows(int rows) {
+        StringBuilder sb = new StringBuilder(rows * 8);
+        for(int i=0; i<rows; i++) {
+            if(i > 0)
+                sb.append(", ");
+            sb.append("(?, ?)");
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Inserts the delta or adds it to the current value. Parameters: key, delta.
+     * Must not return a result set, so it can be used with addBatch().
+     */
+    public abstract String incrementSql(String table);
+
+    /**
+     * Same as {@link #incrementSql(String)}, but as a query returning the new value in one round trip,
+     * together with the value of the row named by the third parameter (null if it does not exist).
+     * Parameters: key, delta, key + "#stripes".
+     *
+     * @return null if the database can not do this in one statement
+     */
+    public String incrementReturningSql(String table) {
+        return null;
+    }
+
+    /**
+     * @return false if the database behind the connection is too old for {@link #incrementReturningSql(String)}
+     */
+    public boolean isIncrementReturningSupported(Connection connection) throws SQLException {
+        return true;
+    }
+
+    public String createTableSql(String table) {
+        return "CREATE TABLE IF NOT EXISTS " + quote(table) + " (" +
+                quote("ckey") + " " + keyColumnType() + " NOT NULL, " +
+                quote("value") + " VARCHAR(256) NULL DEFAULT NULL, " +
+                quote("version") + " BIGINT NOT NULL DEFAULT 1, " +
+                quote("seq") + " " + seqColumnType(table) + ", " +
+                "PRIMARY KEY (" + quote("ckey") + ")" + seqIndexDefinition() + ")";
+    }
+
+    /**
+     * Type of the "seq" column: a number from a database sequence, set when a row is inserted and never updated.
+     */
+    protected String seqColumnType(String table) {
+        return "BIGINT DEFAULT NEXT VALUE FOR " + quote(table + "_seq");
+    }
+
+    /**
+     * Index the seq column needs, after the primary key in {@link #createTableSql(String)}.
+     */
+    protected String seqIndexDefinition() {
+        return "";
+    }
+
+    /**
+     * Statements run by init-schema before the table or its seq column is created. They must be safe to run again.
+     */
+    public List<String> createSequenceSql(String table) {
+        return Collections.singletonList("CREATE SEQUENCE IF NOT EXISTS " + quote(table + "_seq"));
+    }
+
+    protected String keyColumnType() {
+        return "VARCHAR(128)";
+    }
+
+    /**
+     * Adds the version column to a table created before it existed. Existing rows get version 1.
+     */
+    public String addVersionColumnSql(String table) {
+        return "ALTER TABLE " + quote(table) + " ADD COLUMN " + quote("version") + " BIGINT NOT NULL DEFAULT 1";
+    }
+
+    /**
+     * Adds the seq column to a table created before it existed. Existing rows are numbered or left null.
+     */
+    public String addSeqColumnSql(String table) {
+        return "ALTER TABLE " + quote(table) + " ADD COLUMN " + quote("seq") + " " + seqColumnType(table);
+    }
+
+    /**
+     * Parameters: new value, key, expected version.
+     */
+    public String compareAndSetSql(String table) {
+        String version = quote("version");
+        return "UPDATE " + quote(table) + " SET " + quote("value") + " = ?, " + version + " = " + version + " + 1" +
+                " WHERE " + quote("ckey") + " = ? AND " + version + " = ?";
+    }
+
+    /**
+     * Parameters: key, value. Fails with a constraint violation if the key exists.
+     */
+    public String insertSql(String table) {
+        return "INSERT INTO " + quote(table) + " (" + quote("ckey") + ", " + quote("value") + ") VALUES (?, ?)";
+    }
+
+    public String selectVersionedSql(String table) {
+        return "SELECT " + quote("version") + ", " + quote("value") + " FROM " + quote(table) + " WHERE " + quote("ckey") + "=?";
+    }
+
+    /**
+     * Parameters: key.
+     */
+    public String deleteSql(String table) {
+        return "DELETE FROM " + quote(table) + " WHERE " + quote("ckey") + " = ?";
+    }
+
+    public String selectValueSql(String table) {
+        return "SELECT " + quote("value") + " FROM " + quote(table) + " WHERE " + quote("ckey") + "=?";
+    }
+
+    /**
+     * Selects (ckey, value) of the key itself and of every key starting with "key#", which covers
+     * striped counter shards and the "#stripes" row. Parameters: key, likePrefix(key + "#").
+     * Two index lookups; an OR of both conditions would scan the table on some databases.
+     */
+    public String selectWithShardsSql(String table) {
+        String select = "SELECT " + quote("ckey") + ", " + quote("value") + " FROM " + quote(table);
+        return select + " WHERE " + quote("ckey") + " = ? UNION ALL " + select + " WHERE " + likeCondition();
+    }
+
+    /**
+     * "ckey LIKE ? ESCAPE '!'", for a parameter from {@link #likePrefix(String)}.
+     */
+    protected String likeCondition() {
+        return quote("ckey") + " LIKE ? ESCAPE '" + LIKE_ESCAPE + "'";
+    }
+
+    /**
+     * @return LIKE pattern, with {@link #LIKE_ESCAPE}, matching every string that starts with prefix.
+     *         Unlike a key range this matches by characters, whatever the collation of the key column.
+     */
+    public static String likePrefix(String prefix) {
+        StringBuilder pattern = new StringBuilder(prefix.length() + 4);
+        for(int i=0; i<prefix.length(); i++) {
+            char c = prefix.charAt(i);
+            if(c == LIKE_ESCAPE || c == '%' || c == '_') {
+                pattern.append(LIKE_ESCAPE);
+            }
+            pattern.append(c);
+        }
+        return pattern.append('%').toString();
+    }
+
+    /**
+     * Selects (ckey, value) of every key starting with a prefix, in {@link #binaryKeyOrder()}.
+     * Parameter: likePrefix(prefix).
+     */
+    public String selectRangeSql(String table) {
+        return "SELECT " + quote("ckey") + ", " + quote("value") + " FROM " + quote(table) +
+                " WHERE " + likeCondition() + " ORDER BY " + binaryKeyOrder();
+    }
+
+    /**
+     * Expression ordering keys by code point, whatever the collation of the key column.
+     * Linguistic collations sort e.g. "a#1" between "a-b" and "a.b", which would split a striped counter.
+     */
+    protected String binaryKeyOrder() {
+        return quote("ckey");
+    }
+
+    /**
+     * Selects (row count, sum of versions, highest seq) of a key with its shard rows. Versions only grow while
+     * a row exists, so an update raises the sum. An insert, also of a key deleted before, raises the highest
+     * seq, and a delete without an insert lowers the count. So every committed change gives a new result.
+     * Parameters: key, likePrefix(key + "#").
+     */
+    public String selectKeySummarySql(String table) {
+        String version = quote("version");
+        String seq = quote("seq");
+        String select = "SELECT " + version + ", " + seq + " FROM " + quote(table);
+        return "SELECT COUNT(*), COALESCE(SUM(" + version + "), 0), COALESCE(MAX(" + seq + "), 0) FROM (" +
+                select + " WHERE " + quote("ckey") + " = ? UNION ALL " + select + " WHERE " + likeCondition() + ") k";
+    }
+
+    /**
+     * Same as {@link #selectKeySummarySql(String)} over the keys of {@link #selectRangeSql(String)}.
+     */
+    public String selectRangeSummarySql(String table) {
+        return "SELECT COUNT(*), COALESCE(SUM(" + quote("version") + "), 0), COALESCE(MAX(" + quote("seq") + "), 0) FROM " + quote(table) +
+                " WHERE " + likeCondition();
+    }
+
+    /**
+     * Statements run by init-schema so the database pushes change notifications, see {@link #openChangeListener}.
+     * They must be safe to run again.
+     */
+    public List<String> changeNotificationSql(String table) {
+        return Collections.emptyList();
+    }
+
+    /**
+     * Subscribes the connection to changes of the table. The connection must be in autocommit mode.
+     *
+     * @return null if the database can not push changes, then callers poll
+     */
+    public ChangeListener openChangeListener(Connection connection, String table) throws SQLException {
+        return null;
+    }
+
+    /**
+     * Fetch size that makes the driver stream a large result instead of reading all of it first.
+     */
+    public int getStreamingFetchSize() {
+        return 500;
+    }
+
+    public String selectValuesSql(String table, int keyCount) {
+        StringBuilder sql = new StringBuilder();
+        sql.append("SELECT ").append(quote("ckey")).append(", ").append(quote("value"))
+                .append(" FROM ").append(quote(table))
+                .append(" WHERE ").append(quote("ckey")).append(" IN (");
+        for(int i=0; i<keyCount; i++) {
+            sql.append((i == 0) ? "?" : ", ?");
+        }
+        sql.append(")");
+        return sql.toString();
+    }
+
+    protected static String quote(String identifier, char quoteChar) {
+        String quote = String.valueOf(quoteChar);
+        return quote + identifier.replace(quote, quote + quote) + quote;
+    }
+
+    /**
+     * @param name "mysql", "mariadb", "postgresql" or "h2" (1.4.199 or newer)
+     */
+    public static SqlDialect forName(String name) {
+        switch (name.toLowerCase()) {
+            case "mysql":
+            case "mariadb":
+                return new MySqlDialect();
+            case "postgres":
+            case "postgresql":
+                return new PostgreSqlDialect();
+            case "h2":
+                return new H2Dialect();
+            default:
+                throw new IllegalArgumentException("Unknown SQL dialect: " + name);
+        }
+    }
+
+    /**
+     * Picks the dialect from the JDBC URL, or from the driver class name if the URL says nothing.
+     * MySQL is used when neither is recognized. PostgreSQL needs 9.5 or newer, H2 1.4.199 or newer.
+     */
+    public static SqlDialect detect(String jdbcUrl, String driverClassName) {
+        String url = (jdbcUrl != null) ? jdbcUrl.toLowerCase() : "";
+        String driver = (driverClassName != null) ? driverClassName.toLowerCase() : "";
+        if(url.startsWith("jdbc:postgresql:") || url.startsWith("jdbc:pgsql:") || driver.contains("postgresql")) {
+            return new PostgreSqlDialect();
+        }
+        if(url.startsWith("jdbc:h2:") || driver.startsWith("org.h2.")) {
+            return new H2Dialect();
+        }
+        return new MySqlDialect();
+    }
+}
@@ -0,0 +1,158 @@
+package kr.jclab.simplejavasoft.simpleclusterconfig.metrics;
+
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Process wide phase timings and counters.
+ *
+ * Off by default, then a span or counter costs one volatile read. When enabled a span is two
+ * System.nanoTime() calls and a few atomic adds:
+ * <pre>
+ * long started = Metrics.start();
+ * ...
+ * Metrics.stop("module.scan", started);
+ * </pre>
+ * Phases and counters are reported in the order they first occurred.
+ */
+public final class Metrics {
+    private static volatile boolean enabled = false;
+    private static final ConcurrentMap<String, Span> spans = new ConcurrentHashMap<>();
+    private static final ConcurrentMap<String, AtomicLong> counters = new ConcurrentHashMap<>();
+    private static final List<String> spanOrder = new ArrayList<>();
+    private static final List<String> counterOrder = new ArrayList<>();
+
+    private Metrics() {
+    }
+
+    public static void setEnabled(boolean enabled) {
+        Metrics.enabled = enabled;
+    }
+
+    public static boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * @return start time for {@link #stop(String, long)}, 0 if disabled
+     */
+    public static long start() {
+        return enabled ? System.nanoTime() : 0;
+    }
+
+    public static void stop(String phase, long started) {
+        if(!enabled || started == 0) {
+            return ;
+        }
+        long elapsed = System.nanoTime() - started;
+        Span span = spans.get(phase);
+        if(span == null) {
+            synchronized (spanOrder) {
+                span = spans.get(phase);
+                if(span == null) {
+                    span = new Span();
+                    spans.put(phase, span);
+                    spanOrder.add(phase);
+                }
+            }
+        }
+        span.add(elapsed);
+    }
+
+    public static void increment(String counter) {
+        add(counter, 1);
+    }
+
+    public static void add(String counter, long delta) {
+        if(!enabled) {
+            return ;
+        }
+        AtomicLong value = counters.get(counter);
+        if(value == null) {
+            synchronized (counterOrder) {
+                value = counters.get(counter);
+                if(value == null) {
+                    value = new AtomicLong();
+                    counters.put(counter, value);
+                    counterOrder.add(counter);
+                }
+            }
+        }
+        value.addAndGet(delta);
+    }
+
+    /**
+     * One line: {"phases":{"name":{"count":1,"total_ms":1.5,"max_ms":1.5},...},"counters":{"name":1,...}}
+     */
+    public static void writeJson(Appendable out) throws IOException {
+        out.append("{\"phases\":{");
+        boolean first = true;
+        for(String phase : copy(spanOrder)) {
+            Span span = spans.get(phase);
+            if(!first)
+                out.append(',');
+            first = false;
+            out.append('"').append(phase).append("\":{\"count\":").append(Long.toString(span.count.get()))
+                    .append(",\"total_ms\":").append(millis(span.totalNanos.get()))
+                    .append(",\"max_ms\":").append(millis(span.maxNanos.get())).append('}');
+        }
+        out.append("},\"counters\":{");
+        first = true;
+        for(String counter : copy(counterOrder)) {
+            if(!first)
+                out.append(',');
+            first = false;
+            out.append('"').append(counter).append("\":").append(Long.toString(counters.get(counter).get()));
+        }
+        out.append("}}\n");
+    }
+
+    /**
+     * Prometheus text exposition format. Phases are one summary (sum and count per phase label),
+     * every counter is a simpleclusterconfig_&lt;name&gt;_total counter.
+     */
+    public static void writePrometheus(Appendable out) throws IOException {
+        out.append("# HELP simpleclusterconfig_phase_seconds Time spent in each phase.\n");
+        out.append("# TYPE simpleclusterconfig_phase_seconds summary\n");
+        for(String phase : copy(spanOrder)) {
+            Span span = spans.get(phase);
+            out.append("simpleclusterconfig_phase_seconds_sum{phase=\"").append(phase).append("\"} ")
+                    .append(Double.toString(span.totalNanos.get() / 1e9)).append('\n');
+            out.append("simpleclusterconfig_phase_seconds_count{phase=\"").append(phase).append("\"} ")
+                    .append(Long.toString(span.count.get())).append('\n');
+        }
+        for(String counter : copy(counterOrder)) {
+            String name = "simpleclusterconfig_" + counter.replaceAll("[^a-zA-Z0-9_]", "_") + "_total";
+            out.append("# TYPE ").append(name).append(" counter\n");
+            out.append(name).append(' ').append(Long.toString(counters.get(counter).get())).append('\n');
+        }
+    }
+
+    private static List<String> copy(List<String> names) {
+        synchronized (names) {
+            return new ArrayList<>(names);
+        }
+    }
+
+    private static String millis(long nanos) {
+        return String.format(Locale.ROOT, "%.3f", nanos / 1e6);
+    }
+
+    private static class Span {
+        final AtomicLong count = new AtomicLong();
+        final AtomicLong totalNanos = new AtomicLong();
+        final AtomicLong maxNanos = new AtomicLong();
+
+        void add(long nanos) {
+            this.count.incrementAndGet();
+            this.totalNanos.addAndGet(nanos);
+            long max = this.maxNanos.get();
+            while(nanos > max && !this.maxNanos.compareAndSet(max, nanos)) {
+                max = this.maxNanos.get();
+            }
+        }
+    }
+}
@@ -0,0 +1,102 @@
+package kr.jclab.simplejavasoft.simpleclusterconfig.modulemanager;
+
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.util.Map;
+
+/**
+ * Class loader for the resources of one module.
+ *
+ * A class is looked up by its package in a map built from the indexes of the module's dependency
+ * closure: the module's own packages come from its jars, packages of a dependency from that module's
+ * loader, and anything else (the JDK, the application) from the parent.
+ */
+class ModuleClassLoader extends URLClassLoader {
+    static {
+        ClassLoader.registerAsParallelCapable();
+    }
+
+    interface LoaderLookup {
+        ModuleClassLoader getLoader(ModuleItem module);
+    }
+
+    private final ModuleItem module;
+    private final Map<String, ModuleItem> packageMap;
+    private final LoaderLookup loaderLookup;
+
+    /**
+     * @param packageMap package path (e.g. "com/mysql/cj/jdbc") to the module providing it
+     */
+    ModuleClassLoader(ModuleItem module, URL[] urls, ClassLoader parent, Map<String, ModuleItem> packageMap, LoaderLookup loaderLookup) {
+        super(urls, parent);
+        this.module = module;
+        this.packageMap = packageMap;
+        this.loaderLookup = loaderLookup;
+    }
+
+    public ModuleItem getModule() {
+        return module;
+    }
+
+    @Override
+    protected Class<?> loadClass(String name, boolean resolve) throws ClassNotFoundException {
+        synchronized (getClassLoadingLock(name)) {
+            Class<?> clazz = findLoadedClass(name);
+            if(clazz == null) {
+                ModuleItem provider = this.packageMap.get(parentPath(name.replace('.', '/')));
+                if(provider == this.module) {
+                    clazz = findClass(name);
+                }else if(provider != null) {
+                    clazz = this.loaderLookup.getLoader(provider).loadLocalClass(name);
+                }else{
+                    try {
+                        clazz = super.loadClass(name, false);
+                    } catch (ClassNotFoundException e) {
+                        // the package may be missing from an incomplete index
+                        clazz = findClass(name);
+                    }
+                }
+            }
+            if(resolve) {
+                resolveClass(clazz);
+            }
+            return clazz;
+        }
+    }
+
+    /**
+     * Loads from this module's own resources only.
+     */
+    Class<?> loadLocalClass(String name) throws ClassNotFoundException {
+        synchronized (getClassLoadingLock(name)) {
+            Class<?> clazz = findLoadedClass(name);
+            return (clazz != null) ? clazz : findClass(name);
+        }
+    }
+
+    @Override
+    public URL findResource(String name) {
+        URL url = super.findResource(name);
+        if(url == null) {
+            ModuleItem provider = this.packageMap.get(parentPath(name));
+            if(provider != null && provider != this.module) {
+                url = this.loaderLookup.getLoader(provider).findLocalResource(name);
+            }
+        }
+        return url;
+    }
+
+    URL findLocalResource(String name) {
+        return super.findResource(name);
+    }
+
+    private static String parentPath(String path) {
+        int pos = path.lastIndexOf('/');
+        return (pos > 0) ? path.substring(0, pos) : "";
+    }
+
+    @Override
+    public String toString() {
+        return "ModuleClassLoader[" + this.module.getName() + "]";
+    }
+}
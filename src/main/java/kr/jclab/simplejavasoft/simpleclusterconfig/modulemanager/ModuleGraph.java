@@ -0,0 +1,109 @@
+package kr.jclab.simplejavasoft.simpleclusterconfig.modulemanager;
+
+import java.util.*;
+
+/**
+ * Module dependency graph with memoized transitive closures.
+ *
+ * Closures are computed per strongly connected component (Tarjan), so modules on a dependency
+ * cycle share one closure and every module is visited once, whatever the graph looks like.
+ * Dependencies missing from the module tree (usually JDK modules like javax.api) are skipped.
+ */
+class ModuleGraph {
+    private final Map<String, ModuleItem> moduleMap;
+    private final Map<ModuleItem, List<ModuleItem>> closures = new IdentityHashMap<>();
+
+    private final Map<ModuleItem, Integer> visitIndex = new IdentityHashMap<>();
+    private final Map<ModuleItem, Integer> lowLink = new IdentityHashMap<>();
+    private final Deque<ModuleItem> stack = new ArrayDeque<>();
+    private final Set<ModuleItem> onStack = Collections.newSetFromMap(new IdentityHashMap<ModuleItem, Boolean>());
+
+    public ModuleGraph(Map<String, ModuleItem> moduleMap) {
+        this.moduleMap = moduleMap;
+    }
+
+    /**
+     * @return the module and every module it depends on, directly or not. Modules come before
+     *         their dependencies, except on cycles.
+     */
+    public synchronized List<ModuleItem> getClosure(ModuleItem module) {
+        List<ModuleItem> closure = this.closures.get(module);
+        if(closure == null) {
+            strongConnect(module);
+            this.visitIndex.clear();
+            this.lowLink.clear();
+            closure = this.closures.get(module);
+        }
+        return closure;
+    }
+
+    private List<ModuleItem> dependencies(ModuleItem module) {
+        List<ModuleItem> result = new ArrayList<>(module.getDependencies().size());
+        for(ModuleItem.DependencyModule dependency : module.getDependencies()) {
+            ModuleItem item = this.moduleMap.get(dependency.getName());
+            if(item != null)
+                result.add(item);
+        }
+        return result;
+    }
+
+    private void strongConnect(ModuleItem module) {
+        int index = this.visitIndex.size();
+        this.visitIndex.put(module, index);
+        this.lowLink.put(module, index);
+        this.stack.push(module);
+        this.onStack.add(module);
+
+        for(ModuleItem dependency : dependencies(module)) {
+            if(this.closures.containsKey(dependency)) {
+                continue;
+            }
+            if(!this.visitIndex.containsKey(dependency)) {
+                strongConnect(dependency);
+                this.lowLink.put(module, Math.min(this.lowLink.get(module), this.lowLink.get(dependency)));
+            }else if(this.onStack.contains(dependency)) {
+                this.lowLink.put(module, Math.min(this.lowLink.get(module), this.visitIndex.get(dependency)));
+            }
+        }
+
+        if(this.lowLink.get(module).intValue() != index) {
+            return ;
+        }
+        List<ModuleItem> component = new ArrayList<>();
+        ModuleItem member;
+        do {
+            member = this.stack.pop();
+            this.onStack.remove(member);
+            component.add(member);
+        } while(member != module);
+        Collections.reverse(component);
+
+        Set<ModuleItem> componentSet = Collections.newSetFromMap(new IdentityHashMap<ModuleItem, Boolean>());
+        componentSet.addAll(component);
+        boolean cyclic = component.size() > 1;
+        // Every dependency outside the component finished before it, so its closure is known
+        Set<ModuleItem> closure = new LinkedHashSet<>(component);
+        for(ModuleItem item : component) {
+            for(ModuleItem dependency : dependencies(item)) {
+                if(componentSet.contains(dependency)) {
+                    cyclic |= (dependency == item);
+                }else{
+                    closure.addAll(this.closures.get(dependency));
+                }
+            }
+        }
+        if(cyclic) {
+            StringBuilder names = new StringBuilder();
+            for(ModuleItem item : component) {
+                if(names.length() > 0)
+                    names.append(", ");
+                names.append(item.getName());
+            }
+            System.err.println("[WARN] Module dependency cycle: " + names);
+        }
+        List<ModuleItem> result = Collections.unmodifiableList(new ArrayList<>(closure));
+        for(ModuleItem item : component) {
+            this.closures.put(item, result);
+        }
+    }
+}
@@ -0,0 +1,276 @@
+package kr.jclab.simplejavasoft.simpleclusterconfig.modulemanager;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Binary snapshot of a module tree scan.
+ *
+ * Directories are keyed by their mtime (an added/removed entry changes it), so an unchanged
+ * directory never needs to be listed again. Modules are keyed by the mtime/size of the
+ * module.xml and of every resource and its .index file, so only changed modules are re-parsed
+ * and the package index of a replaced jar is never reused.
+ * Entries may be put from several scan workers at once.
+ */
+class ModuleIndexCache {
+    private static final int MAGIC = 0x53434d43; // "SCMC"
+    private static final int VERSION = 4;
+    /** mtime and size of the resource's .index file, then of the resource itself */
+    private static final int STAMPS_PER_RESOURCE = 4;
+
+    private final String rootPath;
+    private final Map<String, DirEntry> dirMap;
+    private final Map<String, ModuleEntry> moduleMap;
+
+    public ModuleIndexCache(String rootPath) {
+        this.rootPath = rootPath;
+        this.dirMap = new ConcurrentHashMap<>();
+        this.moduleMap = new ConcurrentHashMap<>();
+    }
+
+    public String getRootPath() {
+        return rootPath;
+    }
+
+    public DirEntry getDir(File dir) {
+        DirEntry entry = this.dirMap.get(dir.getPath());
+        if(entry != null && entry.lastModified == dir.lastModified()) {
+            return entry;
+        }
+        return null;
+    }
+
+    public void putDir(File dir, DirEntry entry) {
+        this.dirMap.put(dir.getPath(), entry);
+    }
+
+    public ModuleItem getModule(File moduleFile) {
+        ModuleEntry entry = this.moduleMap.get(moduleFile.getPath());
+        if(entry == null) {
+            return null;
+        }
+        if(entry.lastModified != moduleFile.lastModified() || entry.length != moduleFile.length()) {
+            return null;
+        }
+        if(!Arrays.equals(entry.indexStamps, stampResources(entry.item))) {
+            return null;
+        }
+        return entry.item;
+    }
+
+    public void putModule(File moduleFile, ModuleItem item) {
+        this.moduleMap.put(moduleFile.getPath(), new ModuleEntry(moduleFile.lastModified(), moduleFile.length(), item, stampResources(item)));
+    }
+
+    private static long[] stampResources(ModuleItem item) {
+        List<ModuleItem.ResourceItem> resources = item.getResources();
+        long[] stamps = new long[resources.size() * STAMPS_PER_RESOURCE];
+        for(int i=0, l=resources.size(); i<l; i++) {
+            File path = resources.get(i).getPath();
+            File indexFile = indexFileOf(path);
+            stamps[i * STAMPS_PER_RESOURCE] = indexFile.lastModified();
+            stamps[i * STAMPS_PER_RESOURCE + 1] = indexFile.length();
+            stamps[i * STAMPS_PER_RESOURCE + 2] = path.lastModified();
+            stamps[i * STAMPS_PER_RESOURCE + 3] = path.length();
+        }
+        return stamps;
+    }
+
+    /**
+     * Re-stamps the given modules, e.g. after a lookup loaded their indexes and possibly generated .index files.
+     */
+    public void refreshModules(Set<ModuleItem> items) {
+        for(Map.Entry<String, ModuleEntry> entry : this.moduleMap.entrySet()) {
+            if(items.contains(entry.getValue().item)) {
+                putModule(new File(entry.getKey()), entry.getValue().item);
+            }
+        }
+    }
+
+    private static File indexFileOf(File resourcePath) {
+        return new File(resourcePath.getParentFile(), resourcePath.getName() + ".index");
+    }
+
+    /**
+     * Loads a snapshot written by {@link #write(File)}.
+     *
+     * @return null if the file is missing, corrupt, of another version or for another root
+     */
+    public static ModuleIndexCache read(File cacheFile, String rootPath) {
+        if(!cacheFile.isFile()) {
+            return null;
+        }
+        try {
+            byte[] data = Files.readAllBytes(cacheFile.toPath());
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(data));
+            if(in.readInt() != MAGIC || in.readInt() != VERSION) {
+                return null;
+            }
+            ModuleIndexCache cache = new ModuleIndexCache(in.readUTF());
+            if(!cache.rootPath.equals(rootPath)) {
+                return null;
+            }
+
+            int dirCount = in.readInt();
+            for(int i=0; i<dirCount; i++) {
+                String path = in.readUTF();
+                long lastModified = in.readLong();
+                int childCount = in.readInt();
+                String[] names = new String[childCount];
+                boolean[] directories = new boolean[childCount];
+                for(int j=0; j<childCount; j++) {
+                    directories[j] = in.readBoolean();
+                    names[j] = in.readUTF();
+                }
+                cache.dirMap.put(path, new DirEntry(lastModified, names, directories));
+            }
+
+            int moduleCount = in.readInt();
+            for(int i=0; i<moduleCount; i++) {
+                String path = in.readUTF();
+                long lastModified = in.readLong();
+                long length = in.readLong();
+                String name = in.readUTF();
+
+                int depCount = in.readInt();
+                ArrayList<ModuleItem.DependencyModule> dependencies = new ArrayList<>(depCount);
+                for(int j=0; j<depCount; j++) {
+                    String depName = in.readUTF();
+                    byte flags = in.readByte();
+                    dependencies.add(new ModuleItem.DependencyModule(depName, (flags & 1) != 0, (flags & 2) != 0));
+                }
+
+                int resCount = in.readInt();
+                ArrayList<ModuleItem.ResourceItem> resources = new ArrayList<>(resCount);
+                long[] indexStamps = new long[resCount * STAMPS_PER_RESOURCE];
+                for(int j=0; j<resCount; j++) {
+                    File resPath = new File(in.readUTF());
+                    for(int k=0; k<STAMPS_PER_RESOURCE; k++) {
+                        indexStamps[j * STAMPS_PER_RESOURCE + k] = in.readLong();
+                    }
+                    int indexCount = in.readInt();
+                    ArrayList<String> indexes = null;
+                    if(indexCount >= 0) {
+                        indexes = new ArrayList<>(indexCount);
+                        for (int k = 0; k < indexCount; k++) {
+                            indexes.add(in.readUTF());
+                        }
+                    }
+                    resources.add(new ModuleItem.ResourceItem(resPath, indexes));
+                }
+
+                ModuleItem item = new ModuleItem(name, resources, dependencies);
+                cache.moduleMap.put(path, new ModuleEntry(lastModified, length, item, indexStamps));
+            }
+            return cache;
+        } catch (IOException | RuntimeException e) {
+            System.err.println("[WARN] Module index cache is corrupt, rescanning: " + cacheFile.getAbsolutePath());
+            return null;
+        }
+    }
+
+    public void write(File cacheFile) throws IOException {
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(buffer);
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        out.writeUTF(this.rootPath);
+
+        out.writeInt(this.dirMap.size());
+        for(Map.Entry<String, DirEntry> entry : this.dirMap.entrySet()) {
+            DirEntry dirEntry = entry.getValue();
+            out.writeUTF(entry.getKey());
+            out.writeLong(dirEntry.lastModified);
+            out.writeInt(dirEntry.names.length);
+            for(int i=0; i<dirEntry.names.length; i++) {
+                out.writeBoolean(dirEntry.directories[i]);
+                out.writeUTF(dirEntry.names[i]);
+            }
+        }
+
+        out.writeInt(this.moduleMap.size());
+        for(Map.Entry<String, ModuleEntry> entry : this.moduleMap.entrySet()) {
+            ModuleEntry moduleEntry = entry.getValue();
+            ModuleItem item = moduleEntry.item;
+            out.writeUTF(entry.getKey());
+            out.writeLong(moduleEntry.lastModified);
+            out.writeLong(moduleEntry.length);
+            out.writeUTF(item.getName());
+
+            out.writeInt(item.getDependencies().size());
+            for(ModuleItem.DependencyModule dependency : item.getDependencies()) {
+                out.writeUTF(dependency.getName());
+                out.writeByte((dependency.isOptional() ? 1 : 0) | (dependency.isExport() ? 2 : 0));
+            }
+
+            List<ModuleItem.ResourceItem> resources = item.getResources();
+            out.writeInt(resources.size());
+            for(int i=0, l=resources.size(); i<l; i++) {
+                ModuleItem.ResourceItem resource = resources.get(i);
+                out.writeUTF(resource.getPath().getPath());
+                for(int k=0; k<STAMPS_PER_RESOURCE; k++) {
+                    out.writeLong(moduleEntry.indexStamps[i * STAMPS_PER_RESOURCE + k]);
+                }
+                if(resource.isIndexLoaded()) {
+                    // Indexes that were never looked up stay unloaded, -1 marks them
+                    out.writeInt(resource.getIndexes().size());
+                    for (String index : resource.getIndexes()) {
+                        out.writeUTF(index);
+                    }
+                }else{
+                    out.writeInt(-1);
+                }
+            }
+        }
+        out.flush();
+
+        File parentDir = cacheFile.getAbsoluteFile().getParentFile();
+        if(parentDir != null && !parentDir.isDirectory()) {
+            parentDir.mkdirs();
+        }
+        // A unique name, so that processes writing the same cache do not write into one temp file
+        Path tempFile = Files.createTempFile(parentDir.toPath(), cacheFile.getName(), ".tmp");
+        try {
+            try(OutputStream outputStream = Files.newOutputStream(tempFile)) {
+                buffer.writeTo(outputStream);
+            }
+            Files.move(tempFile, cacheFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(tempFile);
+        }
+    }
+
+    static class DirEntry {
+        final long lastModified;
+        final String[] names;
+        final boolean[] directories;
+
+        DirEntry(long lastModified, String[] names, boolean[] directories) {
+            this.lastModified = lastModified;
+            this.names = names;
+            this.directories = directories;
+        }
+    }
+
+    static class ModuleEntry {
+        final long lastModified;
+        final long length;
+        final ModuleItem item;
+        final long[] indexStamps;
+
+        ModuleEntry(long lastModified, long length, ModuleItem item, long[] indexStamps) {
+            this.lastModified = lastModified;
+            this.length = length;
+            this.item = item;
+            this.indexStamps = indexStamps;
+        }
+    }
+}
@@ -1,5 +1,7 @@
 package kr.jclab.simplejavasoft.simpleclusterconfig.modulemanager;
 
+import kr.jclab.simplejavasoft.simpleclusterconfig.metrics.Metrics;
+
 import org.w3c.dom.Document;
 import org.w3c.dom.Element;
 import org.w3c.dom.Node;
@@ -7,10 +9,16 @@ import org.w3c.dom.NodeList;
 import org.xml.sax.SAXException;
 
 import javax.xml.parsers.DocumentBuilder;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
 import java.io.*;
-import java.util.ArrayList;
-import java.util.Collections;
-import java.util.List;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.*;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
 
 public class ModuleItem {
     private final String name;
@@ -52,7 +60,11 @@ public class ModuleItem {
                     for (int i = 0, l = moduleNodes.getLength(); i < l; i++) {
                         Node moduleNode = moduleNodes.item(i);
                         if(moduleNode instanceof Element) {
-                            DependencyModule dependencyModule = new DependencyModule(((Element)moduleNode).getAttribute("name"));
+                            Element moduleElement = (Element)moduleNode;
+                            DependencyModule dependencyModule = new DependencyModule(
+                                    moduleElement.getAttribute("name"),
+                                    "true".equalsIgnoreCase(moduleElement.getAttribute("optional")),
+                                    "true".equalsIgnoreCase(moduleElement.getAttribute("export")));
                             if(dependencyModule.isValid()) {
                                 dependencyModules.add(dependencyModule);
                             }
@@ -66,6 +78,117 @@ public class ModuleItem {
         this.dependencies = Collections.unmodifiableList(dependencyModules);
     }
 
+    /**
+     * Streaming parser, fills the module in one pass without building a DOM tree.
+     * Everything except resources/resource-root and dependencies/module (e.g. exports, properties)
+     * is skipped as it is read.
+     */
+    public ModuleItem(XMLInputFactory inputFactory, File moduleFile) throws IOException, XMLStreamException {
+        ArrayList<DependencyModule> dependencyModules = new ArrayList<>();
+        ArrayList<ResourceItem> resourceModules = new ArrayList<>();
+        String name = "";
+
+        try(InputStream inputStream = new BufferedInputStream(new FileInputStream(moduleFile))) {
+            XMLStreamReader reader = inputFactory.createXMLStreamReader(inputStream);
+            try {
+                while (reader.hasNext()) {
+                    if (reader.next() == XMLStreamConstants.START_ELEMENT) {
+                        String nameAttr = reader.getAttributeValue(null, "name");
+                        if (nameAttr != null) {
+                            name = nameAttr;
+                        }
+                        parseModuleElement(reader, moduleFile, resourceModules, dependencyModules);
+                        break;
+                    }
+                }
+            } finally {
+                reader.close();
+            }
+        }
+
+        this.name = name;
+        this.resources = Collections.unmodifiableList(resourceModules);
+        this.dependencies = Collections.unmodifiableList(dependencyModules);
+    }
+
+    private static void parseModuleElement(XMLStreamReader reader, File moduleFile, List<ResourceItem> resourceModules, List<DependencyModule> dependencyModules) throws XMLStreamException {
+        boolean resourcesFound = false;
+        boolean dependenciesFound = false;
+        while (reader.hasNext()) {
+            int event = reader.next();
+            if (event == XMLStreamConstants.END_ELEMENT) {
+                return;
+            } else if (event != XMLStreamConstants.START_ELEMENT) {
+                continue;
+            }
+            String localName = reader.getLocalName();
+            if (!resourcesFound && "resources".equals(localName)) {
+                resourcesFound = true;
+                while (nextChildElement(reader)) {
+                    if ("resource-root".equals(reader.getLocalName())) {
+                        String resPath = reader.getAttributeValue(null, "path");
+                        resourceModules.add(new ResourceItem(new File(moduleFile.getParentFile(), (resPath != null) ? resPath : "")));
+                    }
+                    skipElement(reader);
+                }
+            } else if (!dependenciesFound && "dependencies".equals(localName)) {
+                dependenciesFound = true;
+                while (nextChildElement(reader)) {
+                    if ("module".equals(reader.getLocalName())) {
+                        DependencyModule dependencyModule = new DependencyModule(
+                                reader.getAttributeValue(null, "name"),
+                                "true".equalsIgnoreCase(reader.getAttributeValue(null, "optional")),
+                                "true".equalsIgnoreCase(reader.getAttributeValue(null, "export")));
+                        if (dependencyModule.isValid()) {
+                            dependencyModules.add(dependencyModule);
+                        }
+                    }
+                    skipElement(reader);
+                }
+            } else {
+                skipElement(reader);
+            }
+        }
+    }
+
+    /**
+     * Advances to the next child START_ELEMENT of the current element.
+     *
+     * @return false when the end of the current element was reached instead
+     */
+    private static boolean nextChildElement(XMLStreamReader reader) throws XMLStreamException {
+        while (reader.hasNext()) {
+            int event = reader.next();
+            if (event == XMLStreamConstants.START_ELEMENT) {
+                return true;
+            } else if (event == XMLStreamConstants.END_ELEMENT) {
+                return false;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Consumes the rest of the current element, including its END_ELEMENT.
+     */
+    private static void skipElement(XMLStreamReader reader) throws XMLStreamException {
+        int depth = 1;
+        while (depth > 0 && reader.hasNext()) {
+            int event = reader.next();
+            if (event == XMLStreamConstants.START_ELEMENT) {
+                depth++;
+            } else if (event == XMLStreamConstants.END_ELEMENT) {
+                depth--;
+            }
+        }
+    }
+
+    ModuleItem(String name, List<ResourceItem> resources, List<DependencyModule> dependencies) {
+        this.name = name;
+        this.resources = Collections.unmodifiableList(resources);
+        this.dependencies = Collections.unmodifiableList(dependencies);
+    }
+
     public String getName() {
         return name;
     }
@@ -80,10 +203,18 @@ public class ModuleItem {
 
     public static class DependencyModule {
         private final String name;
+        private final boolean optional;
+        private final boolean export;
         private final boolean valid;
 
         public DependencyModule(String name) {
+            this(name, false, false);
+        }
+
+        public DependencyModule(String name, boolean optional, boolean export) {
             this.name = name;
+            this.optional = optional;
+            this.export = export;
 
             this.valid = (name != null);
         }
@@ -95,53 +226,196 @@ public class ModuleItem {
         public String getName() {
             return name;
         }
+
+        public boolean isOptional() {
+            return optional;
+        }
+
+        public boolean isExport() {
+            return export;
+        }
     }
 
     public static class ResourceItem {
+        /** First line of a generated index: the jar's mtime and size it was built from */
+        private static final String GENERATED_STAMP_PREFIX = "#generated ";
+
         private final File path;
-        private final boolean valid;
-        private final List<String> indexes;
+        private volatile List<String> indexes;
 
         public ResourceItem(File path) {
-            boolean valid = false;
-            ArrayList<String> indexes = new ArrayList<>();
-            File indexFile = new File(path.getParentFile(), path.getName() + ".index");
             this.path = path;
+            this.indexes = null;
+        }
 
-            do {
-                if (!indexFile.isFile()) {
-                    break;
-                }
+        ResourceItem(File path, List<String> indexes) {
+            this.path = path;
+            this.indexes = (indexes != null) ? Collections.unmodifiableList(indexes) : null;
+        }
 
-                try(InputStream inputStream = new FileInputStream(indexFile)) {
-                    BufferedReader reader = new BufferedReader(new InputStreamReader(inputStream));
-                    String line;
-                    while((line = reader.readLine()) != null) {
-                        indexes.add(line.trim());
+        public File getPath() {
+            return path;
+        }
+
+        public File getIndexFile() {
+            return new File(path.getParentFile(), path.getName() + ".index");
+        }
+
+        public List<String> getIndexes() {
+            return getIndexes(null);
+        }
+
+        /**
+         * Package index of this resource, loaded on first use.
+         *
+         * The jboss &lt;jar&gt;.index file shipped with the jar is used if present, it is never written.
+         * Otherwise the package list is built from the jar's central directory (or the exploded directory)
+         * and stored as a generated index in indexCacheDir, stamped with the jar's mtime and size so it is
+         * rebuilt when the jar changes.
+         *
+         * @param indexCacheDir directory for generated indexes, null to not store them
+         */
+        public List<String> getIndexes(File indexCacheDir) {
+            List<String> indexes = this.indexes;
+            if(indexes == null) {
+                synchronized (this) {
+                    indexes = this.indexes;
+                    if(indexes == null) {
+                        indexes = Collections.unmodifiableList(loadIndexes(indexCacheDir));
+                        this.indexes = indexes;
                     }
+                }
+            }
+            return indexes;
+        }
+
+        public boolean isIndexLoaded() {
+            return this.indexes != null;
+        }
+
+        public boolean isValid() {
+            return getIndexFile().isFile() || path.exists();
+        }
 
-                }catch (IOException e){
+        private List<String> loadIndexes(File indexCacheDir) {
+            File indexFile = getIndexFile();
+            if(indexFile.isFile()) {
+                try {
+                    return readIndexFile(indexFile);
+                } catch (IOException e) {
                     e.printStackTrace();
-                    break;
                 }
+            }
 
-                valid = true;
-            } while(false);
+            String stamp = GENERATED_STAMP_PREFIX + path.lastModified() + " " + path.length();
+            File generatedIndexFile = (indexCacheDir != null) ?
+                    new File(indexCacheDir, path.getName() + "-" + Integer.toHexString(path.getAbsolutePath().hashCode()) + ".index") :
+                    null;
+            if(generatedIndexFile != null && generatedIndexFile.isFile()) {
+                try {
+                    List<String> indexes = readIndexFile(generatedIndexFile);
+                    if(!indexes.isEmpty() && stamp.equals(indexes.get(0))) {
+                        return new ArrayList<>(indexes.subList(1, indexes.size()));
+                    }
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
 
-            this.valid = valid;
-            this.indexes = indexes;
-        }
+            TreeSet<String> packages = new TreeSet<>();
+            Metrics.increment("jar_indexes_built");
+            try {
+                if(path.isDirectory()) {
+                    scanDirectory(path, "", packages);
+                }else if(path.isFile()) {
+                    scanJar(path, packages);
+                }else{
+                    return new ArrayList<>();
+                }
+            } catch (IOException e) {
+                e.printStackTrace();
+                return new ArrayList<>();
+            }
 
-        public File getPath() {
-            return path;
+            ArrayList<String> indexes = new ArrayList<>(packages);
+            if(generatedIndexFile != null) {
+                try {
+                    writeIndexFile(generatedIndexFile, stamp, indexes);
+                } catch (IOException e) {
+                    // Read-only cache directory, the jar is scanned again next time
+                }
+            }
+            return indexes;
         }
 
-        public List<String> getIndexes() {
+        private static List<String> readIndexFile(File indexFile) throws IOException {
+            ArrayList<String> indexes = new ArrayList<>();
+            Metrics.increment("index_files_read");
+            try(InputStream inputStream = new FileInputStream(indexFile)) {
+                BufferedReader reader = new BufferedReader(new InputStreamReader(inputStream));
+                String line;
+                while((line = reader.readLine()) != null) {
+                    indexes.add(line.trim());
+                }
+            }
             return indexes;
         }
 
-        public boolean isValid() {
-            return valid;
+        /**
+         * Writes through a temp file, so a concurrent reader never sees half an index.
+         */
+        private static void writeIndexFile(File indexFile, String stamp, List<String> indexes) throws IOException {
+            File parentDir = indexFile.getAbsoluteFile().getParentFile();
+            if(parentDir != null && !parentDir.isDirectory()) {
+                parentDir.mkdirs();
+            }
+            File tempFile = File.createTempFile(indexFile.getName(), ".tmp", parentDir);
+            try(Writer writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(tempFile), "UTF-8"))) {
+                writer.write(stamp);
+                writer.write('\n');
+                for(String index : indexes) {
+                    writer.write(index);
+                    writer.write('\n');
+                }
+            } catch (IOException e) {
+                tempFile.delete();
+                throw e;
+            }
+            Files.move(tempFile.toPath(), indexFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        }
+
+        /**
+         * Only reads the central directory entries, nothing is inflated or class-loaded.
+         */
+        private static void scanJar(File jarFile, Set<String> packages) throws IOException {
+            try(ZipFile zipFile = new ZipFile(jarFile)) {
+                Enumeration<? extends ZipEntry> entries = zipFile.entries();
+                while(entries.hasMoreElements()) {
+                    ZipEntry entry = entries.nextElement();
+                    if(entry.isDirectory()) {
+                        continue;
+                    }
+                    String name = entry.getName();
+                    int pos = name.lastIndexOf('/');
+                    if(pos > 0) {
+                        packages.add(name.substring(0, pos));
+                    }
+                }
+            }
+        }
+
+        private static void scanDirectory(File dir, String prefix, Set<String> packages) {
+            File[] files = dir.listFiles();
+            if(files == null) {
+                return;
+            }
+            for(File file : files) {
+                if(file.isDirectory()) {
+                    scanDirectory(file, prefix.isEmpty() ? file.getName() : prefix + "/" + file.getName(), packages);
+                }else if(!prefix.isEmpty()) {
+                    packages.add(prefix);
+                }
+            }
         }
     }
-}
\ No newline at end of file
+}
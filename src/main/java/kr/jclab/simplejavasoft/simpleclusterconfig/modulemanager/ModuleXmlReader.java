@@ -0,0 +1,39 @@
+package kr.jclab.simplejavasoft.simpleclusterconfig.modulemanager;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamException;
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Parses module.xml files for the module scan.
+ *
+ * Kept out of the scan itself, so a scan answered from the module index cache never loads the
+ * XML parser classes.
+ */
+final class ModuleXmlReader {
+    /** Every scan worker gets its own XMLInputFactory, created only once a module.xml really has to be parsed. */
+    private static final ThreadLocal<XMLInputFactory> inputFactory = new ThreadLocal<>();
+
+    private ModuleXmlReader() {
+    }
+
+    private static XMLInputFactory getInputFactory() {
+        XMLInputFactory factory = inputFactory.get();
+        if(factory == null) {
+            factory = XMLInputFactory.newInstance();
+            factory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+            factory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+            inputFactory.set(factory);
+        }
+        return factory;
+    }
+
+    static ModuleItem read(File moduleFile) throws IOException {
+        try {
+            return new ModuleItem(getInputFactory(), moduleFile);
+        } catch (XMLStreamException e) {
+            throw new IOException("Invalid module file " + moduleFile.getAbsolutePath(), e);
+        }
+    }
+}
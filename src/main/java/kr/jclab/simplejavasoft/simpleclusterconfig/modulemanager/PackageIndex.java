@@ -0,0 +1,131 @@
+package kr.jclab.simplejavasoft.simpleclusterconfig.modulemanager;
+
+import java.io.File;
+import java.util.*;
+
+/**
+ * Package path (e.g. "com/mysql/cj/jdbc") to module lookup, filled on demand.
+ *
+ * Only modules whose resource indexes are already known (e.g. from the module index cache) are
+ * merged up front. A lookup miss first loads the modules whose name matches the package, and only
+ * falls back to loading every remaining module when none of those has it.
+ * Lists are kept in scan order, the same order an eager scan would produce.
+ */
+class PackageIndex {
+    private final File indexCacheDir;
+    private final Map<ModuleItem, Integer> scanOrder = new IdentityHashMap<>();
+    private final LinkedHashSet<ModuleItem> pendingModules = new LinkedHashSet<>();
+    private final Map<String, List<ModuleItem>> packageMap = new HashMap<>();
+    private final Set<ModuleItem> loadedModules = Collections.newSetFromMap(new IdentityHashMap<ModuleItem, Boolean>());
+
+    public PackageIndex(List<ModuleItem> modules, File indexCacheDir) {
+        this.indexCacheDir = indexCacheDir;
+        for(ModuleItem item : modules) {
+            this.scanOrder.put(item, this.scanOrder.size());
+            if(isIndexLoaded(item)) {
+                merge(item);
+            }else{
+                this.pendingModules.add(item);
+            }
+        }
+    }
+
+    public synchronized List<ModuleItem> find(String packagePath) {
+        List<ModuleItem> found = this.packageMap.get(packagePath);
+        if(found != null || this.pendingModules.isEmpty()) {
+            return copyOf(found);
+        }
+
+        List<ModuleItem> candidates = new ArrayList<>();
+        for(ModuleItem item : this.pendingModules) {
+            if(isCandidate(item.getName(), packagePath)) {
+                candidates.add(item);
+            }
+        }
+        mergePending(candidates);
+        found = this.packageMap.get(packagePath);
+        if(found != null) {
+            return copyOf(found);
+        }
+
+        mergePending(new ArrayList<>(this.pendingModules));
+        return copyOf(this.packageMap.get(packagePath));
+    }
+
+    private static List<ModuleItem> copyOf(List<ModuleItem> list) {
+        return (list != null) ? Collections.unmodifiableList(new ArrayList<>(list)) : null;
+    }
+
+    /**
+     * @return modules whose indexes were loaded by lookups since the last call
+     */
+    public synchronized Set<ModuleItem> takeLoadedModules() {
+        Set<ModuleItem> result = new HashSet<>(this.loadedModules);
+        this.loadedModules.clear();
+        return result;
+    }
+
+    /**
+     * Records modules whose indexes were loaded outside of lookups, for {@link #takeLoadedModules()}.
+     */
+    public synchronized void addLoadedModules(Collection<ModuleItem> modules) {
+        this.loadedModules.addAll(modules);
+    }
+
+    /**
+     * A module is a candidate if its name and the package share the first two segments,
+     * e.g. "com.mysql" for "com/mysql/cj/jdbc".
+     */
+    private static boolean isCandidate(String moduleName, String packagePath) {
+        String[] moduleSegments = moduleName.split("\\.", 3);
+        String[] packageSegments = packagePath.split("/", 3);
+        int count = Math.min(2, Math.min(moduleSegments.length, packageSegments.length));
+        if(count == 0) {
+            return false;
+        }
+        for(int i=0; i<count; i++) {
+            if(!moduleSegments[i].equals(packageSegments[i])) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void mergePending(List<ModuleItem> items) {
+        for(ModuleItem item : items) {
+            this.pendingModules.remove(item);
+            this.loadedModules.add(item);
+            merge(item);
+        }
+    }
+
+    private void merge(ModuleItem item) {
+        int order = this.scanOrder.get(item);
+        for(ModuleItem.ResourceItem resource : item.getResources()) {
+            for(String path : resource.getIndexes(this.indexCacheDir)) {
+                List<ModuleItem> list = this.packageMap.get(path);
+                if(list == null) {
+                    list = new ArrayList<>();
+                    this.packageMap.put(path, list);
+                }
+                int pos = list.size();
+                while(pos > 0 && this.scanOrder.get(list.get(pos - 1)) > order) {
+                    pos--;
+                }
+                if(pos > 0 && list.get(pos - 1) == item) {
+                    continue;
+                }
+                list.add(pos, item);
+            }
+        }
+    }
+
+    private static boolean isIndexLoaded(ModuleItem item) {
+        for(ModuleItem.ResourceItem resource : item.getResources()) {
+            if(!resource.isIndexLoaded()) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -0,0 +1,80 @@
+package kr.jclab.simplejavasoft.simpleclusterconfig;
+
+import kr.jclab.simplejavasoft.simpleclusterconfig.dialect.H2Dialect;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.StringReader;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+
+public class BatchRunnerTest {
+    private static final AtomicInteger tableCounter = new AtomicInteger();
+
+    private Connection connection;
+    private ConfigStore store;
+
+    @Before
+    public void createTable() throws SQLException {
+        this.connection = DriverManager.getConnection("jdbc:h2:mem:batch_runner_test;DB_CLOSE_DELAY=-1", "sa", "");
+        String table = "cfg_" + tableCounter.incrementAndGet();
+        SchemaManager.initSchema(this.connection, new H2Dialect(), table);
+        this.store = new ConfigStore(this.connection, new H2Dialect(), table);
+    }
+
+    @After
+    public void close() throws SQLException {
+        this.store.close();
+        this.connection.close();
+    }
+
+    @Test
+    public void incrementsReportTheirOwnValues() throws Exception {
+        assertEquals(Arrays.asList("5", "7", "7"), values(run(BatchRunner.CommitPolicy.ALL, "inc c 5", "inc c 2", "get c")));
+        assertEquals(Arrays.asList("8", "6"), values(run(BatchRunner.CommitPolicy.ALL, "inc c", "dec c 2")));
+    }
+
+    @Test
+    public void incrementsBeforeAndAfterSets() throws Exception {
+        run(BatchRunner.CommitPolicy.ALL, "set d 100");
+        List<BatchRunner.Result> results = run(BatchRunner.CommitPolicy.EACH,
+                "inc d 1", "set d 10", "inc d 2", "inc d 3", "set d 0", "inc d 4");
+        // sets report the value after the whole batch, increments the value right after themselves
+        assertEquals(Arrays.asList("101", "4", "12", "15", "4", "4"), values(results));
+    }
+
+    @Test
+    public void failedOperationsAreSkipped() throws Exception {
+        run(BatchRunner.CommitPolicy.ALL, "set text abc", "set n 1");
+        List<BatchRunner.Result> results = run(BatchRunner.CommitPolicy.EACH, "inc n 1", "inc text 1", "inc n 1");
+        assertEquals(BatchRunner.STATUS_OK, results.get(0).getStatus());
+        assertEquals(BatchRunner.STATUS_ERROR, results.get(1).getStatus());
+        assertEquals(Arrays.asList("2", null, "3"), values(results));
+    }
+
+    private List<BatchRunner.Result> run(BatchRunner.CommitPolicy commitPolicy, String... lines) throws IOException, SQLException {
+        StringBuilder input = new StringBuilder();
+        for(String line : lines) {
+            input.append(line).append('\n');
+        }
+        return new BatchRunner(this.store, commitPolicy).run(new BufferedReader(new StringReader(input.toString())));
+    }
+
+    private static List<String> values(List<BatchRunner.Result> results) {
+        List<String> values = new ArrayList<>(results.size());
+        for(BatchRunner.Result result : results) {
+            values.add(result.getValue());
+        }
+        return values;
+    }
+}
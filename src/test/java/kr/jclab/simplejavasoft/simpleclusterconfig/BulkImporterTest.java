@@ -0,0 +1,179 @@
+package kr.jclab.simplejavasoft.simpleclusterconfig;
+
+import kr.jclab.simplejavasoft.simpleclusterconfig.dialect.H2Dialect;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringReader;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class BulkImporterTest {
+    @Rule
+    public final TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    @Test
+    public void jsonUnescapesStrings() throws IOException {
+        List<String[]> rows = readAll(OutputFormat.JSON,
+                "{\"key\":\"a\\\"b\",\"value\":\"1\\n2\\t3\\\\4\\u00e9\\/\"}\n");
+        assertEquals(1, rows.size());
+        assertArrayEquals(new String[] { "a\"b", "1\n2\t3\\4\u00e9/" }, rows.get(0));
+    }
+
+    @Test
+    public void jsonReadsNullValuesAndSkipsBlankLines() throws IOException {
+        List<String[]> rows = readAll(OutputFormat.JSON,
+                "\n{\"key\":\"a\",\"value\":null}\n  \n{ \"value\" : null , \"key\" : \"b\" }\r\n{\"key\":\"c\"}\n");
+        assertEquals(3, rows.size());
+        assertArrayEquals(new String[] { "a", null }, rows.get(0));
+        assertArrayEquals(new String[] { "b", null }, rows.get(1));
+        assertArrayEquals(new String[] { "c", null }, rows.get(2));
+    }
+
+    @Test
+    public void jsonReportsTheBadLine() {
+        assertReadFails(OutputFormat.JSON, "{\"key\":\"a\",\"value\":\"1\"}\n\n{\"key\":\"b\",\"value\":\"2\n", "Line 3: unterminated string");
+        assertReadFails(OutputFormat.JSON, "{\"value\":\"1\"}\n", "Line 1: no key");
+        assertReadFails(OutputFormat.JSON, "{\"key\":\"a\",\"value\":\"\\u12\"}\n", "Line 1: bad \\u escape");
+        assertReadFails(OutputFormat.JSON, "[\"a\",\"1\"]\n", "Line 1: expected '{'");
+    }
+
+    @Test
+    public void csvReadsQuotedFields() throws IOException {
+        List<String[]> rows = readAll(OutputFormat.CSV,
+                "plain,1\r\n\"with,comma\",\"say \"\"hi\"\"\"\n\"multi\",\"line\r\nvalue\"\n");
+        assertEquals(3, rows.size());
+        assertArrayEquals(new String[] { "plain", "1" }, rows.get(0));
+        assertArrayEquals(new String[] { "with,comma", "say \"hi\"" }, rows.get(1));
+        assertArrayEquals(new String[] { "multi", "line\r\nvalue" }, rows.get(2));
+    }
+
+    @Test
+    public void csvTellsEmptyFromNull() throws IOException {
+        List<String[]> rows = readAll(OutputFormat.CSV, "a,\nb,\"\"\n\n\nc,x");
+        assertEquals(3, rows.size());
+        assertArrayEquals(new String[] { "a", null }, rows.get(0));
+        assertArrayEquals(new String[] { "b", "" }, rows.get(1));
+        assertArrayEquals(new String[] { "c", "x" }, rows.get(2));
+    }
+
+    @Test
+    public void csvReportsTheBadRecord() {
+        assertReadFails(OutputFormat.CSV, "a,1\nb,2,3\n", "Record 2: expected key,value");
+        assertReadFails(OutputFormat.CSV, "a,1\nkeyonly\n", "Record 2: expected key,value");
+        assertReadFails(OutputFormat.CSV, ",1\n", "Record 1: expected key,value");
+        assertReadFails(OutputFormat.CSV, "a,\"open\n", "Record 1: unterminated quoted field");
+    }
+
+    @Test
+    public void resumeSkipsCommittedRows() throws Exception {
+        File progressFile = new File(this.temporaryFolder.getRoot(), "import.progress");
+        String input = "{\"key\":\"a\",\"value\":\"1\"}\n{\"key\":\"b\",\"value\":\"2\"}\n{\"key\":\"c\",\"value\":\"3\"}\n";
+        try(Connection connection = newConnection("resume_test")) {
+            importFailingAfter(connection, progressFile, input.substring(0, input.indexOf("{\"key\":\"c\"")));
+            assertTrue(progressFile.isFile());
+
+            BulkImporter.Result result = newImporter(connection, progressFile).run(new StringReader(input), OutputFormat.JSON);
+            assertEquals(2, result.getSkippedRows());
+            assertEquals(1, result.getImportedRows());
+            assertFalse(progressFile.exists());
+            assertEquals("3", new ConfigStore(connection, new H2Dialect(), "cfg").get("c"));
+        }
+    }
+
+    @Test
+    public void resumeRefusesChangedInput() throws Exception {
+        File progressFile = new File(this.temporaryFolder.getRoot(), "import.progress");
+        String input = "{\"key\":\"a\",\"value\":\"1\"}\n{\"key\":\"b\",\"value\":\"2\"}\n";
+        try(Connection connection = newConnection("resume_mismatch_test")) {
+            importFailingAfter(connection, progressFile, input);
+            try {
+                newImporter(connection, progressFile).run(new StringReader(input.replace("\"2\"", "\"20\"")), OutputFormat.JSON);
+                fail("Resumed from a changed input");
+            } catch (BulkImporter.ResumeMismatchException e) {
+                assertTrue(e.getMessage(), e.getMessage().startsWith("The first 2 rows of the input differ"));
+            }
+            try {
+                newImporter(connection, progressFile).run(new StringReader(input.replace("\"2\"", "\"20\"")), OutputFormat.CSV);
+                fail("Resumed with another format");
+            } catch (BulkImporter.ResumeMismatchException e) {
+                assertTrue(e.getMessage(), e.getMessage().endsWith("is for format json, not csv"));
+            }
+            assertTrue(progressFile.isFile());
+        }
+    }
+
+    /**
+     * Imports the rows of input, one commit each, and then fails as if the input was cut off.
+     */
+    private static void importFailingAfter(Connection connection, File progressFile, final String input) throws Exception {
+        Reader reader = new Reader() {
+            private final StringReader delegate = new StringReader(input);
+
+            @Override
+            public int read(char[] buffer, int offset, int length) throws IOException {
+                int read = this.delegate.read(buffer, offset, length);
+                if(read < 0)
+                    throw new IOException("Input cut off");
+                return read;
+            }
+
+            @Override
+            public void close() {
+                this.delegate.close();
+            }
+        };
+        BulkImporter importer = newImporter(connection, progressFile);
+        importer.setCommitRows(1);
+        try {
+            importer.run(reader, OutputFormat.JSON);
+            fail("Import did not fail");
+        } catch (IOException e) {
+            assertEquals("Input cut off", e.getMessage());
+        }
+    }
+
+    private static BulkImporter newImporter(Connection connection, File progressFile) {
+        BulkImporter importer = new BulkImporter(connection, new H2Dialect(), "cfg");
+        importer.setProgressFile(progressFile);
+        importer.setInputName("input.json");
+        return importer;
+    }
+
+    private static Connection newConnection(String name) throws Exception {
+        Connection connection = DriverManager.getConnection("jdbc:h2:mem:" + name, "sa", "");
+        SchemaManager.initSchema(connection, new H2Dialect(), "cfg");
+        return connection;
+    }
+
+    private static List<String[]> readAll(OutputFormat format, String input) throws IOException {
+        BulkImporter.RowReader reader = BulkImporter.RowReader.forFormat(new StringReader(input), format);
+        List<String[]> rows = new ArrayList<>();
+        String[] row;
+        while((row = reader.next()) != null) {
+            rows.add(row);
+        }
+        return rows;
+    }
+
+    private static void assertReadFails(OutputFormat format, String input, String message) {
+        try {
+            readAll(format, input);
+            fail("Read " + input);
+        } catch (IOException e) {
+            assertEquals(message, e.getMessage());
+        }
+    }
+}
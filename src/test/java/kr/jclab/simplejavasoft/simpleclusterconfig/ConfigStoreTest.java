@@ -0,0 +1,205 @@
+package kr.jclab.simplejavasoft.simpleclusterconfig;
+
+import kr.jclab.simplejavasoft.simpleclusterconfig.dialect.H2Dialect;
+import kr.jclab.simplejavasoft.simpleclusterconfig.dialect.SqlDialect;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.BufferedReader;
+import java.io.StringReader;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class ConfigStoreTest {
+    private static final AtomicInteger tableCounter = new AtomicInteger();
+
+    private final SqlDialect dialect = new H2Dialect();
+    private Connection connection;
+    // Stripe counts are cached per table for the whole process, so every test gets a table of its own
+    private String table;
+    private ConfigStore store;
+
+    @Before
+    public void createTable() throws SQLException {
+        this.connection = DriverManager.getConnection("jdbc:h2:mem:config_store_test;DB_CLOSE_DELAY=-1", "sa", "");
+        this.table = "cfg_" + tableCounter.incrementAndGet();
+        SchemaManager.initSchema(this.connection, this.dialect, this.table);
+        this.store = new ConfigStore(this.connection, this.dialect, this.table);
+    }
+
+    @After
+    public void close() throws SQLException {
+        this.store.close();
+        this.connection.close();
+    }
+
+    @Test
+    public void firstIncrementOfStripedCounterWritesOnlyShards() throws SQLException {
+        // striped by another process, this one has not seen the key yet
+        insertRow("hot#stripes", "4");
+        for(int i=0; i<10; i++) {
+            execute(Operation.Type.INCREMENT, "hot", "1");
+        }
+        Map<String, String> rows = rows();
+        assertFalse(rows.containsKey("hot"));
+        for(String key : rows.keySet()) {
+            assertTrue(key, key.startsWith("hot#"));
+        }
+        assertEquals("10", this.store.get("hot"));
+    }
+
+    @Test
+    public void stripingKeepsTheCurrentValue() throws SQLException {
+        execute(Operation.Type.SET, "counter", "5");
+        this.store.setStripeCount("counter", 2);
+        this.connection.commit();
+        execute(Operation.Type.INCREMENT, "counter", "3");
+        execute(Operation.Type.DECREMENT, "counter", "1");
+        assertEquals("7", this.store.get("counter"));
+    }
+
+    @Test
+    public void setOfStripedCounterReplacesShards() throws SQLException {
+        insertRow("hot#stripes", "4");
+        for(int i=0; i<10; i++) {
+            execute(Operation.Type.INCREMENT, "hot", "1");
+        }
+        execute(Operation.Type.SET, "hot", "100");
+
+        Map<String, String> expected = new LinkedHashMap<>();
+        expected.put("hot", "100");
+        expected.put("hot#stripes", "4");
+        assertEquals(expected, rows());
+        assertEquals("101", execute(Operation.Type.INCREMENT, "hot", "1"));
+    }
+
+    @Test
+    public void batchedSetOfStripedCounterReplacesShards() throws Exception {
+        insertRow("hot#stripes", "2");
+        insertRow("hot#0", "3");
+        insertRow("hot#1", "4");
+        List<BatchRunner.Result> results = new BatchRunner(this.store, BatchRunner.CommitPolicy.ALL)
+                .run(new BufferedReader(new StringReader("set hot 7\nset plain 1\n")));
+
+        assertEquals("7", results.get(0).getValue());
+        assertEquals("1", results.get(1).getValue());
+        Map<String, String> expected = new LinkedHashMap<>();
+        expected.put("hot", "7");
+        expected.put("hot#stripes", "2");
+        expected.put("plain", "1");
+        assertEquals(expected, rows());
+        assertEquals("9", execute(Operation.Type.INCREMENT, "hot", "2"));
+    }
+
+    @Test
+    public void listReportsStripedCounterOnceBetweenInterleavedKeys() throws SQLException {
+        // "a!" sorts between "a" and its shards, "a-b" after them
+        insertRow("a", "1");
+        insertRow("a!", "x");
+        insertRow("a#stripes", "2");
+        insertRow("a#0", "2");
+        insertRow("a#1", "3");
+        insertRow("a-b", "y");
+        insertRow("b", "z");
+
+        Map<String, String> expected = new LinkedHashMap<>();
+        expected.put("a", "6");
+        expected.put("a!", "x");
+        expected.put("a-b", "y");
+        expected.put("b", "z");
+        Map<String, String> listed = list("");
+        assertEquals(expected, listed);
+        assertEquals(new ArrayList<>(expected.keySet()), new ArrayList<>(listed.keySet()));
+    }
+
+    @Test
+    public void listMergesShardsOnlyOfStripedCounters() throws SQLException {
+        insertRow("a", "1");
+        insertRow("a#0", "2");
+        insertRow("a#x", "3");
+        insertRow("b", "1");
+        insertRow("b#0", "2");
+        insertRow("b#stripes", "1");
+
+        Map<String, String> expected = new LinkedHashMap<>();
+        expected.put("a", "1");
+        expected.put("a#0", "2");
+        expected.put("a#x", "3");
+        expected.put("b", "3");
+        assertEquals(expected, list(""));
+    }
+
+    @Test
+    public void listUsesCodePointOrder() throws SQLException {
+        String supplementary = new String(Character.toChars(0x1F600));
+        insertRow(supplementary, "2");
+        insertRow("\uFFFD", "1");
+        insertRow("k", "0");
+
+        assertEquals(Arrays.asList("k", "\uFFFD", supplementary), new ArrayList<>(list("").keySet()));
+    }
+
+    @Test
+    public void listMatchesPrefixLiterally() throws SQLException {
+        insertRow("p_1", "1");
+        insertRow("px1", "2");
+        insertRow("p%", "3");
+
+        assertEquals(Collections.singletonList("p_1"), new ArrayList<>(list("p_").keySet()));
+        assertEquals(Collections.singletonList("p%"), new ArrayList<>(list("p%").keySet()));
+    }
+
+    private Map<String, String> list(String prefix) throws SQLException {
+        final Map<String, String> listed = new LinkedHashMap<>();
+        int count = this.store.list(prefix, new ConfigStore.RowCallback() {
+            @Override
+            public void row(String key, String value) {
+                listed.put(key, value);
+            }
+        });
+        assertEquals(listed.size(), count);
+        return listed;
+    }
+
+    private String execute(Operation.Type type, String key, String value) throws SQLException {
+        return this.store.execute(new Operation(type, key, value));
+    }
+
+    private void insertRow(String key, String value) throws SQLException {
+        try(PreparedStatement preparedStatement = this.connection.prepareStatement(this.dialect.insertSql(this.table))) {
+            preparedStatement.setString(1, key);
+            preparedStatement.setString(2, value);
+            preparedStatement.executeUpdate();
+        }
+        if(!this.connection.getAutoCommit())
+            this.connection.commit();
+    }
+
+    private Map<String, String> rows() throws SQLException {
+        Map<String, String> rows = new LinkedHashMap<>();
+        try(PreparedStatement preparedStatement = this.connection.prepareStatement(this.dialect.selectRangeSql(this.table))) {
+            preparedStatement.setString(1, "%");
+            try(ResultSet resultSet = preparedStatement.executeQuery()) {
+                while(resultSet.next()) {
+                    rows.put(resultSet.getString(1), resultSet.getString(2));
+                }
+            }
+        }
+        return rows;
+    }
+}
@@ -0,0 +1,103 @@
+package kr.jclab.simplejavasoft.simpleclusterconfig.daemon;
+
+import kr.jclab.simplejavasoft.simpleclusterconfig.BatchRunner;
+import kr.jclab.simplejavasoft.simpleclusterconfig.SchemaManager;
+import kr.jclab.simplejavasoft.simpleclusterconfig.dialect.H2Dialect;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.net.Socket;
+import java.sql.Connection;
+
+import static org.junit.Assert.assertEquals;
+
+public class DaemonProtocolTest {
+    private ConfigDaemon daemon;
+    private Thread serveThread;
+
+    @Before
+    public void createDaemon() throws Exception {
+        ConnectionPool connectionPool = new ConnectionPool("jdbc:h2:mem:daemon_test;DB_CLOSE_DELAY=-1", "sa", "", 2, 60000);
+        Connection connection = connectionPool.borrow();
+        try {
+            SchemaManager.initSchema(connection, new H2Dialect(), "cfg");
+        } finally {
+            connectionPool.release(connection, false);
+        }
+        this.daemon = new ConfigDaemon(connectionPool, new H2Dialect(), "cfg", DaemonProtocol.DEFAULT_HOST, 0, 2);
+    }
+
+    @After
+    public void stopDaemon() throws Exception {
+        this.daemon.close();
+        if(this.serveThread != null)
+            this.serveThread.join(5000);
+    }
+
+    private void serve() {
+        this.serveThread = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    daemon.serve();
+                } catch (Exception e) {
+                    e.printStackTrace();
+                }
+            }
+        };
+        this.serveThread.start();
+    }
+
+    @Test
+    public void escapeKeepsMessagesOnOneLine() {
+        String value = "a\\b\nc\rd\te";
+        String escaped = DaemonProtocol.escape(value);
+        assertEquals("a\\\\b\\nc\\rd\te", escaped);
+        assertEquals(value, DaemonProtocol.unescape(escaped));
+    }
+
+    @Test
+    public void unescapeKeepsTrailingBackslash() {
+        assertEquals("a\\", DaemonProtocol.unescape("a\\"));
+    }
+
+    @Test
+    public void formatResponse() {
+        assertEquals("0\tx\\ny", DaemonProtocol.formatResponse(BatchRunner.STATUS_OK, "x\ny"));
+        assertEquals("1\t", DaemonProtocol.formatResponse(BatchRunner.STATUS_NOT_FOUND, null));
+    }
+
+    @Test
+    public void badRequestsFailWithoutConnection() {
+        assertEquals("10\tUnknown operation: frob", this.daemon.handleRequest("frob x"));
+        assertEquals("10\tNeed operation", this.daemon.handleRequest(""));
+    }
+
+    @Test
+    public void roundTrip() throws Exception {
+        serve();
+        try(DaemonClient client = new DaemonClient(DaemonProtocol.DEFAULT_HOST, this.daemon.getLocalPort(), 5000)) {
+            assertEquals(BatchRunner.STATUS_NOT_FOUND, client.send("get missing").getStatus());
+
+            DaemonClient.Response response = client.send("set multi line\nvalue\twith tab");
+            assertEquals(BatchRunner.STATUS_OK, response.getStatus());
+            response = client.send("get multi");
+            assertEquals(BatchRunner.STATUS_OK, response.getStatus());
+            assertEquals("line\nvalue\twith tab", response.getValue());
+
+            assertEquals("2", client.send("inc counter 2").getValue());
+            assertEquals("1", client.send("dec counter").getValue());
+        }
+    }
+
+    @Test
+    public void idleClientIsDisconnected() throws Exception {
+        this.daemon.setClientIdleTimeoutMillis(200);
+        serve();
+        try(Socket socket = new Socket(DaemonProtocol.DEFAULT_HOST, this.daemon.getLocalPort())) {
+            socket.setSoTimeout(5000);
+            assertEquals(-1, socket.getInputStream().read());
+        }
+    }
+}
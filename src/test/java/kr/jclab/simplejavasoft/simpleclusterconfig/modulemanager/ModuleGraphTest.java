@@ -0,0 +1,91 @@
+package kr.jclab.simplejavasoft.simpleclusterconfig.modulemanager;
+
+import org.junit.Test;
+
+import java.util.*;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+public class ModuleGraphTest {
+    private final Map<String, ModuleItem> moduleMap = new HashMap<>();
+
+    @Test
+    public void closureListsModulesBeforeTheirDependencies() {
+        module("a", "b", "c");
+        module("b", "d");
+        module("c", "d");
+        module("d");
+        ModuleGraph graph = new ModuleGraph(this.moduleMap);
+
+        assertEquals(Arrays.asList("a", "b", "d", "c"), names(graph.getClosure(this.moduleMap.get("a"))));
+        assertEquals(Arrays.asList("c", "d"), names(graph.getClosure(this.moduleMap.get("c"))));
+        assertEquals(Collections.singletonList("d"), names(graph.getClosure(this.moduleMap.get("d"))));
+    }
+
+    @Test
+    public void missingDependenciesAreSkipped() {
+        module("a", "javax.api", "b");
+        module("b", "sun.jdk");
+        ModuleGraph graph = new ModuleGraph(this.moduleMap);
+
+        assertEquals(Arrays.asList("a", "b"), names(graph.getClosure(this.moduleMap.get("a"))));
+    }
+
+    @Test
+    public void modulesOnACycleShareOneClosure() {
+        module("a", "b");
+        module("b", "c");
+        module("c", "a", "d");
+        module("d");
+        module("e", "b");
+        ModuleGraph graph = new ModuleGraph(this.moduleMap);
+
+        List<ModuleItem> closure = graph.getClosure(this.moduleMap.get("b"));
+        assertEquals(new HashSet<>(Arrays.asList("a", "b", "c", "d")), new HashSet<>(names(closure)));
+        assertEquals(4, closure.size());
+        assertEquals("d", closure.get(3).getName());
+        assertSame(closure, graph.getClosure(this.moduleMap.get("a")));
+        assertSame(closure, graph.getClosure(this.moduleMap.get("c")));
+
+        List<ModuleItem> fromOutside = graph.getClosure(this.moduleMap.get("e"));
+        assertEquals("e", fromOutside.get(0).getName());
+        assertEquals(closure, fromOutside.subList(1, fromOutside.size()));
+    }
+
+    @Test
+    public void selfDependencyIsListedOnce() {
+        module("a", "a", "b");
+        module("b", "b");
+        ModuleGraph graph = new ModuleGraph(this.moduleMap);
+
+        assertEquals(Arrays.asList("a", "b"), names(graph.getClosure(this.moduleMap.get("a"))));
+    }
+
+    @Test
+    public void closuresAreMemoized() {
+        module("a", "b");
+        module("b");
+        ModuleGraph graph = new ModuleGraph(this.moduleMap);
+
+        List<ModuleItem> closure = graph.getClosure(this.moduleMap.get("a"));
+        assertSame(closure, graph.getClosure(this.moduleMap.get("a")));
+        assertSame(graph.getClosure(this.moduleMap.get("b")), graph.getClosure(this.moduleMap.get("b")));
+    }
+
+    private void module(String name, String... dependencies) {
+        List<ModuleItem.DependencyModule> dependencyModules = new ArrayList<>();
+        for(String dependency : dependencies) {
+            dependencyModules.add(new ModuleItem.DependencyModule(dependency));
+        }
+        this.moduleMap.put(name, new ModuleItem(name, new ArrayList<ModuleItem.ResourceItem>(), dependencyModules));
+    }
+
+    private static List<String> names(List<ModuleItem> modules) {
+        List<String> names = new ArrayList<>(modules.size());
+        for(ModuleItem module : modules) {
+            names.add(module.getName());
+        }
+        return names;
+    }
+}